@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -18,9 +17,16 @@ public class BatchProcessor {
 
     // Set up the batch processor
     public BatchProcessor(InventoryManager inventoryManager, int threadPoolSize) {
+        this(inventoryManager, threadPoolSize, false);
+    }
+
+    // Set up the batch processor, giving every line its own virtual thread if
+    // virtualThreads is true (see TaskExecutors). Either way at most
+    // threadPoolSize lines are processed at the same time.
+    public BatchProcessor(InventoryManager inventoryManager, int threadPoolSize, boolean virtualThreads) {
         this.inventoryManager = inventoryManager;
         // Create a pool of workers to process items
-        this.executorService = Executors.newFixedThreadPool(threadPoolSize);
+        this.executorService = TaskExecutors.newExecutor(virtualThreads, threadPoolSize);
     }
 
     // Add many products from a CSV file
@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.UUID;
+
+// This class turns products and transactions into compact bytes and back
+// It replaces Java serialization for everything we keep on disk. Java
+// serialization writes class descriptions and whole object graphs; here we only
+// write the values, and small numbers take small space:
+//   - whole numbers are varints (1 byte for 0..63, 2 bytes up to 8191, ...)
+//   - ids that are UUIDs are two longs instead of 36 characters
+//   - timestamps are microseconds since 1970 (UTC)
+//   - enums are their position in the enum
+public final class BinaryCodec {
+    // Which version of the product/transaction layout we write. Every record
+    // starts with this so the layout can change later without breaking old data.
+    public static final byte VERSION = 2;
+
+    // How an id was written
+    private static final byte ID_TEXT = 0;
+    private static final byte ID_UUID = 1;
+
+    private static final Transaction.TransactionType[] TRANSACTION_TYPES = Transaction.TransactionType.values();
+
+    private BinaryCodec() {
+    }
+
+    // Write all of a product's details
+    public static void writeProduct(Writer out, Product product) {
+        product.writeId(out);
+        out.writeString(product.getName());
+        out.writeString(product.getCategory());
+        out.writeDouble(product.getPrice());
+        out.writeInt(product.getQuantity());
+        out.writeInt(product.getMinStockLevel());
+    }
+
+    // Read back a product written by writeProduct()
+    public static Product readProduct(Reader in) throws IOException {
+        return new Product(in.readIdKey(), in.readString(), in.readString(), in.readDouble(), in.readInt(),
+                in.readInt());
+    }
+
+    // Write all of a transaction's details
+    public static void writeTransaction(Writer out, Transaction transaction) {
+        transaction.writeIds(out);
+        out.writeByte(transaction.getType().ordinal());
+        out.writeInt(transaction.getQuantity());
+        out.writeTimestamp(transaction.getTimestamp());
+        out.writeString(transaction.getUserId());
+    }
+
+    // Read back a transaction written by writeTransaction()
+    public static Transaction readTransaction(Reader in) throws IOException {
+        Object id = in.readIdKey();
+        Object productId = in.readIdKey();
+        int type = in.readByte();
+        if (type < 0 || type >= TRANSACTION_TYPES.length) {
+            throw new IOException("Unknown transaction type " + type);
+        }
+        int quantity = in.readInt();
+        LocalDateTime timestamp = in.readTimestamp();
+        String userId = in.readString();
+
+        return new Transaction(id, productId, TRANSACTION_TYPES[type], quantity, timestamp, userId);
+    }
+
+    // Collects encoded values in a byte array that grows as needed
+    public static class Writer {
+        private byte[] bytes;
+        private int size;
+
+        public Writer() {
+            this(64);
+        }
+
+        public Writer(int initialCapacity) {
+            this.bytes = new byte[initialCapacity];
+        }
+
+        public void writeByte(int value) {
+            ensureCapacity(1);
+            bytes[size++] = (byte) value;
+        }
+
+        public void writeBytes(byte[] values) {
+            ensureCapacity(values.length);
+            System.arraycopy(values, 0, bytes, size, values.length);
+            size += values.length;
+        }
+
+        // Whole numbers are stored in 7-bit pieces, with the top bit saying
+        // whether more pieces follow. Negative numbers are first mapped onto
+        // positive ones (0, -1, 1, -2, ... -> 0, 1, 2, 3, ...) so they stay short too.
+        public void writeInt(int value) {
+            writeUnsignedLong(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+        }
+
+        public void writeLong(long value) {
+            writeUnsignedLong((value << 1) ^ (value >> 63));
+        }
+
+        public void writeUnsignedLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        // Prices keep their exact bits
+        public void writeDouble(double value) {
+            writeFixedLong(Double.doubleToLongBits(value));
+        }
+
+        public void writeFixedLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        public void writeString(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeUnsignedLong(utf8.length);
+            writeBytes(utf8);
+        }
+
+        // Ids we create ourselves are UUIDs, which fit in two longs. Anything
+        // else (or a UUID written in a different style) is kept as text, so we
+        // always get back exactly the string we were given.
+        public void writeId(String id) {
+            UUID uuid = PackedId.parse(id);
+            if (uuid == null) {
+                writeByte(ID_TEXT);
+                writeString(id);
+            } else {
+                writeId(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            }
+        }
+
+        // A UUID id that's already two longs (see PackedId)
+        public void writeId(long high, long low) {
+            writeByte(ID_UUID);
+            writeFixedLong(high);
+            writeFixedLong(low);
+        }
+
+        // An id kept as a map key (see PackedId.key())
+        public void writeId(Object key) {
+            if (key instanceof UUID) {
+                UUID uuid = (UUID) key;
+                writeId(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+            } else {
+                writeId((String) key);
+            }
+        }
+
+        public void writeTimestamp(LocalDateTime timestamp) {
+            long seconds = timestamp.toEpochSecond(ZoneOffset.UTC);
+            writeLong(seconds * 1_000_000L + timestamp.getNano() / 1_000);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        // Start over with nothing written, keeping the space we have
+        public void clear() {
+            size = 0;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+    }
+
+    // Reads values back out of a byte array written by a Writer
+    public static class Reader {
+        private final byte[] bytes;
+        private int position;
+        private final int end;
+
+        public Reader(byte[] bytes) {
+            this(bytes, 0, bytes.length);
+        }
+
+        public Reader(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        public int readByte() throws IOException {
+            require(1);
+            return bytes[position++];
+        }
+
+        public byte[] readBytes(int length) throws IOException {
+            require(length);
+            byte[] values = Arrays.copyOfRange(bytes, position, position + length);
+            position += length;
+            return values;
+        }
+
+        public int readInt() throws IOException {
+            long value = readUnsignedLong();
+            return (int) (value >>> 1) ^ -(int) (value & 1);
+        }
+
+        public long readLong() throws IOException {
+            long value = readUnsignedLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public long readUnsignedLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        public double readDouble() throws IOException {
+            return Double.longBitsToDouble(readFixedLong());
+        }
+
+        public long readFixedLong() throws IOException {
+            require(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (bytes[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        public String readString() throws IOException {
+            long length = readUnsignedLong();
+            if (length > end - position) {
+                throw new IOException("String runs past the end of the record");
+            }
+            String value = new String(bytes, position, (int) length, StandardCharsets.UTF_8);
+            position += (int) length;
+            return value;
+        }
+
+        public String readId() throws IOException {
+            return readIdKey().toString();
+        }
+
+        // Read an id as a map key (see PackedId.key()): a UUID id comes back as
+        // the two longs that were written, in a UUID, without being turned into
+        // text and parsed again
+        public Object readIdKey() throws IOException {
+            int kind = readByte();
+            if (kind == ID_UUID) {
+                return new UUID(readFixedLong(), readFixedLong());
+            } else if (kind == ID_TEXT) {
+                return readString();
+            }
+            throw new IOException("Unknown id format " + kind);
+        }
+
+        public LocalDateTime readTimestamp() throws IOException {
+            long micros = readLong();
+            long seconds = Math.floorDiv(micros, 1_000_000L);
+            int nanos = (int) Math.floorMod(micros, 1_000_000L) * 1_000;
+            return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+        }
+
+        public boolean hasRemaining() {
+            return position < end;
+        }
+
+        private void require(int length) throws IOException {
+            if (length < 0 || position + length > end) {
+                throw new IOException("Record is shorter than expected");
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,120 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// This program measures how much memory adding products and selling stock
+// allocates, to show what moving the catalog off CopyOnWriteArrayList saved.
+// It adds products and then runs a sales load through a real InventoryManager,
+// and for comparison does the same number of appends to a CopyOnWriteArrayList,
+// which is what the catalog and the transaction list used to be: every append
+// copied the whole list.
+//
+// Run it in an empty directory, since it writes its own data files there:
+//   java CatalogAllocationBenchmark [products] [sales]
+public class CatalogAllocationBenchmark {
+    private static final int SALES_THREADS = 4;
+    // Appends to time on the copy-on-write transaction list; each one copies
+    // the whole history, so a few are enough
+    private static final int COPY_ON_WRITE_APPENDS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int productCount = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int salesCount = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        if (LogProductStore.exists() || MappedProductStore.exists() || TransactionStore.exists()) {
+            System.err.println("There are inventory data files here already; run this in an empty directory");
+            return;
+        }
+
+        InventoryManager inventoryManager = new InventoryManager(new InventoryFileManager(
+                InventoryFileManager.ProductStorage.LOG, InventoryFileManager.DurabilityMode.BUFFERED));
+
+        // Adding products
+        List<Product> products = new ArrayList<>(productCount);
+        long before = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < productCount; i++) {
+            products.add(inventoryManager.addProduct("Product " + i, "Category " + (i % 20), 9.99, 1_000_000, 10));
+        }
+        long addTime = System.nanoTime() - start;
+        long addBytes = allocatedBytes() - before;
+
+        // A sustained sales load from a few threads at once
+        before = allocatedBytes();
+        start = System.nanoTime();
+        Thread[] threads = new Thread[SALES_THREADS];
+        for (int t = 0; t < SALES_THREADS; t++) {
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < salesCount / SALES_THREADS; i++) {
+                        Product product = products.get(random.nextInt(products.size()));
+                        try {
+                            inventoryManager.updateStock(product.getId(), -1, Transaction.TransactionType.SALE,
+                                    "benchmark");
+                        } catch (InventoryException e) {
+                            System.err.println("Sale failed: " + e.getMessage());
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long salesTime = System.nanoTime() - start;
+        long salesBytes = allocatedBytes() - before;
+        inventoryManager.shutdown();
+
+        // The same appends to copy-on-write lists, as the old catalog and
+        // transaction list did them
+        List<Product> oldCatalog = new CopyOnWriteArrayList<>();
+        before = allocatedBytes();
+        for (Product product : products) {
+            oldCatalog.add(product);
+        }
+        long oldAddBytes = allocatedBytes() - before;
+
+        Transaction transaction = new Transaction(UUID.randomUUID().toString(), products.get(0).getId(),
+                Transaction.TransactionType.SALE, -1, "benchmark");
+        List<Transaction> oldHistory = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < salesCount; i++) {
+            oldHistory.add(null);
+        }
+        before = allocatedBytes();
+        for (int i = 0; i < COPY_ON_WRITE_APPENDS; i++) {
+            oldHistory.add(transaction);
+        }
+        long oldSaleBytes = allocatedBytes() - before;
+
+        System.out.println("Adding " + productCount + " products: " + kilobytes(addBytes / productCount)
+                + " per product, " + addTime / 1_000_000 + " ms");
+        System.out.println("  copy-on-write catalog: " + kilobytes(oldAddBytes / productCount) + " per product");
+        System.out.println(salesCount + " sales on " + SALES_THREADS + " threads: " + kilobytes(salesBytes / salesCount)
+                + " per sale, " + salesTime / 1_000_000 + " ms");
+        System.out.println("  copy-on-write transaction list with " + salesCount + " transactions: "
+                + kilobytes(oldSaleBytes / COPY_ON_WRITE_APPENDS) + " per sale");
+    }
+
+    // Bytes allocated so far by every live thread (HotSpot and similar JVMs
+    // can tell us this)
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private static String kilobytes(long bytes) {
+        return String.format("%.1f KB", bytes / 1024.0);
+    }
+}
\ No newline at end of file
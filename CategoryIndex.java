@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// This class finds the products in a category without going through the whole
+// catalog, and keeps running totals for every category
+// Categories are matched ignoring upper and lower case, like
+// equalsIgnoreCase(). When a product changes category, take it out with
+// remove() before the change and put it back with add() after. When only its
+// stock count or price changes, refresh() is enough.
+public class CategoryIndex {
+    // What a product added to the totals, so it can be taken off again exactly
+    private static class Counted {
+        int quantity;
+        double price;
+
+        Counted(int quantity, double price) {
+            this.quantity = quantity;
+            this.price = price;
+        }
+    }
+
+    // What we know about one category
+    private static class Entry {
+        final String category; // As written by the first product we saw in it
+        final Map<String, Counted> products = new LinkedHashMap<>(); // By product id
+        long totalQuantity;
+        double totalValue;
+
+        Entry(String category) {
+            this.category = category;
+        }
+    }
+
+    // The totals for one category, as they were when asked for
+    public static class CategorySummary {
+        private final String category;
+        private final int productCount;
+        private final long totalQuantity;
+        private final double totalValue;
+
+        CategorySummary(String category, int productCount, long totalQuantity, double totalValue) {
+            this.category = category;
+            this.productCount = productCount;
+            this.totalQuantity = totalQuantity;
+            this.totalValue = totalValue;
+        }
+
+        public String getCategory() {
+            return category;
+        }
+
+        // How many products are in the category
+        public int getProductCount() {
+            return productCount;
+        }
+
+        // How many items of those products we have in stock
+        public long getTotalQuantity() {
+            return totalQuantity;
+        }
+
+        // What the stock is worth (price times quantity, added up)
+        public double getTotalValue() {
+            return totalValue;
+        }
+
+        @Override
+        public String toString() {
+            return "CategorySummary{category='" + category + "', products=" + productCount
+                    + ", totalQuantity=" + totalQuantity + ", totalValue=" + totalValue + "}";
+        }
+    }
+
+    private final Map<String, Entry> categories = new HashMap<>();
+
+    // Put a product in the index
+    public synchronized void add(Product product) {
+        String key = InventoryManager.foldCase(product.getCategory());
+        Entry entry = categories.get(key);
+        if (entry == null) {
+            entry = new Entry(product.getCategory());
+            categories.put(key, entry);
+        }
+        if (!entry.products.containsKey(product.getId())) {
+            Counted counted = new Counted(product.getQuantity(), product.getPrice());
+            entry.products.put(product.getId(), counted);
+            entry.totalQuantity += counted.quantity;
+            entry.totalValue += counted.price * counted.quantity;
+        }
+    }
+
+    // Take a product out of the index
+    public synchronized void remove(Product product) {
+        String key = InventoryManager.foldCase(product.getCategory());
+        Entry entry = categories.get(key);
+        Counted counted = entry == null ? null : entry.products.remove(product.getId());
+        if (counted == null) {
+            return;
+        }
+        if (entry.products.isEmpty()) {
+            categories.remove(key);
+        } else {
+            entry.totalQuantity -= counted.quantity;
+            entry.totalValue -= counted.price * counted.quantity;
+        }
+    }
+
+    // Bring the totals up to date with a product's stock count and price
+    // It reads them now, so if several threads change the same product and each
+    // calls this afterwards, the totals end up right whatever order the calls
+    // come in. Does nothing if the product isn't in the index.
+    public synchronized void refresh(Product product) {
+        Entry entry = categories.get(InventoryManager.foldCase(product.getCategory()));
+        Counted counted = entry == null ? null : entry.products.get(product.getId());
+        if (counted == null) {
+            return;
+        }
+        int quantity = product.getQuantity();
+        double price = product.getPrice();
+        entry.totalQuantity += quantity - counted.quantity;
+        entry.totalValue += price * quantity - counted.price * counted.quantity;
+        counted.quantity = quantity;
+        counted.price = price;
+    }
+
+    // The ids of the products in a category
+    public synchronized List<String> productIds(String category) {
+        Entry entry = categories.get(InventoryManager.foldCase(category));
+        return entry == null ? new ArrayList<>() : new ArrayList<>(entry.products.keySet());
+    }
+
+    // The totals for one category, or null if there's no such category
+    public synchronized CategorySummary summary(String category) {
+        Entry entry = categories.get(InventoryManager.foldCase(category));
+        return entry == null ? null : summaryOf(entry);
+    }
+
+    // The totals for every category
+    public synchronized List<CategorySummary> summaries() {
+        List<CategorySummary> result = new ArrayList<>();
+        for (Entry entry : categories.values()) {
+            result.add(summaryOf(entry));
+        }
+        return result;
+    }
+
+    private static CategorySummary summaryOf(Entry entry) {
+        return new CategorySummary(entry.category, entry.products.size(), entry.totalQuantity, entry.totalValue);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// This class saves product changes in groups
+// Callers put their change in a queue and get back a future. One flusher thread
+// takes everything waiting in the queue, saves it all with one write and one
+// sync, and then completes the futures. When many threads change stock at the
+// same time they share the cost of the disk write instead of queueing up for one
+// write each.
+public class GroupCommitter {
+    // Save at most this many changes in one go, so one huge batch can't keep
+    // everyone waiting
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    // What the flusher does with each batch
+    public interface BatchWriter {
+        void write(List<ProductChange> changes) throws IOException;
+    }
+
+    // A change waiting to be saved, and the future to complete once it is
+    // A pending entry without a change is a marker used by flush()
+    private static class Pending {
+        final ProductChange change;
+        final CompletableFuture<Void> saved = new CompletableFuture<>();
+
+        Pending(ProductChange change) {
+            this.change = change;
+        }
+    }
+
+    // Put in the queue by close() to tell the flusher to finish up
+    private static final Pending STOP = new Pending(null);
+
+    private final BatchWriter writer;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread flusher;
+    private boolean running = true;
+
+    // Start the flusher thread
+    public GroupCommitter(BatchWriter writer) {
+        this.writer = writer;
+        this.flusher = new Thread(new Runnable() {
+            public void run() {
+                flushLoop();
+            }
+        }, "product-group-commit");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    // Queue a change to be saved
+    // The future completes once the change is on disk, or fails if it couldn't be
+    // saved
+    public synchronized CompletableFuture<Void> submit(ProductChange change) {
+        Pending pending = new Pending(change);
+        if (!running) {
+            pending.saved.completeExceptionally(new IOException("Group commit has been shut down"));
+        } else {
+            queue.add(pending);
+        }
+        return pending.saved;
+    }
+
+    // Wait until everything queued so far has been saved (or has failed)
+    public void flush() {
+        Pending marker = new Pending(null);
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            queue.add(marker);
+        }
+        marker.saved.join();
+    }
+
+    // Save what's still queued and stop the flusher thread
+    // Nothing can be queued after the stop marker, so it's always the last thing
+    // the flusher sees
+    public void close() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            queue.add(STOP);
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // This is what the flusher thread does
+    private void flushLoop() {
+        List<Pending> batch = new ArrayList<>();
+        List<ProductChange> changes = new ArrayList<>();
+        boolean stopping = false;
+
+        while (!stopping) {
+            try {
+                // Wait for the first change, then grab whatever else is waiting
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue; // Nobody should interrupt us; keep going until we're stopped
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+            for (Pending pending : batch) {
+                if (pending == STOP) {
+                    stopping = true;
+                } else if (pending.change != null) {
+                    changes.add(pending.change);
+                }
+            }
+
+            Throwable failure = null;
+            if (!changes.isEmpty()) {
+                try {
+                    writer.write(changes);
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                }
+            }
+
+            for (Pending pending : batch) {
+                if (failure == null || pending.change == null) {
+                    pending.saved.complete(null);
+                } else {
+                    pending.saved.completeExceptionally(failure);
+                }
+            }
+            batch.clear();
+            changes.clear();
+        }
+    }
+}
\ No newline at end of file
@@ -1,75 +1,256 @@
 import java.io.*;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 // This class handles saving and loading data to and from files
 // It makes sure we don't lose our inventory data when the program closes
 public class InventoryFileManager {
-    // These are the names of the files we use to store data
-    private static final String PRODUCTS_FILE = "products.dat";
-    private static final String TRANSACTIONS_FILE = "transactions.dat";
+    // The different ways we can keep the product catalog on disk
+    public enum ProductStorage {
+        LOG, // A snapshot file plus a log of changes since then (see LogProductStore)
+        MAPPED // A memory-mapped file with one fixed-size slot per product (see MappedProductStore)
+    }
+
+    // How hard we try to make sure saved data survives a crash or power cut
+    // Writing data hands it to the operating system, which puts it on the disk
+    // when it suits it. Syncing (fsync) waits until it's really on the disk, which
+    // is much slower.
+    public enum DurabilityMode {
+        SYNC, // Sync after every product change and every transaction
+        GROUP, // Like SYNC, but product changes are saved in groups with one sync per group
+        PERIODIC, // Sync everything once a second; a crash can lose the last second of changes
+        BUFFERED // Never sync; leave it to the operating system
+    }
+
+    // How often PERIODIC syncs
+    private static final long PERIODIC_SYNC_MILLIS = 1000;
+
+    // Transaction history older than this is compressed, unless set otherwise
+    public static final Duration DEFAULT_TRANSACTION_ARCHIVE_AGE = Duration.ofDays(30);
 
     // These help us make sure we don't have problems when multiple threads try to
     // read or write files
     private final ReadWriteLock productsLock = new ReentrantReadWriteLock();
     private final ReadWriteLock transactionsLock = new ReentrantReadWriteLock();
 
-    // Save all products to a file
-    public void saveProducts(List<Product> products) throws InventoryException {
-        productsLock.writeLock().lock(); // Get permission to write to the file
+    // How the product catalog is kept on disk
+    private final ProductStorage productStorage;
+    private ProductStore productStore;
+    // How hard we try to get data onto the disk
+    private final DurabilityMode durability;
+    // Saves product changes in groups, only in GROUP mode
+    private final GroupCommitter groupCommitter;
+    // Syncs the files on a timer, only in PERIODIC mode
+    private final ScheduledExecutorService periodicSync;
+
+    // The transaction history stays open so adding a transaction is just one
+    // write at the end of the newest segment
+    private final long maxTransactionSegmentBytes;
+    private TransactionStore transactionStore;
+    // Set by close(); after that the stores aren't opened again (guarded by
+    // this)
+    private boolean closed;
+    // How old transaction history gets before it's compressed (null = never)
+    private volatile Duration transactionArchiveAge = DEFAULT_TRANSACTION_ARCHIVE_AGE;
+    // Only one archiving run at a time
+    private final Object archiveLock = new Object();
+
+    // Use the default way of keeping products on disk
+    public InventoryFileManager() {
+        this(ProductStorage.LOG, DurabilityMode.PERIODIC);
+    }
+
+    // Choose how products are kept on disk
+    public InventoryFileManager(ProductStorage productStorage) {
+        this(productStorage, DurabilityMode.PERIODIC);
+    }
+
+    // Choose how products are kept on disk and how hard we try to get data onto
+    // the disk
+    public InventoryFileManager(ProductStorage productStorage, DurabilityMode durability) {
+        this(productStorage, durability, TransactionStore.DEFAULT_MAX_SEGMENT_BYTES);
+    }
+
+    // Also choose how big a transaction history segment gets before a new one
+    // is started
+    public InventoryFileManager(ProductStorage productStorage, DurabilityMode durability,
+            long maxTransactionSegmentBytes) {
+        this.productStorage = productStorage;
+        this.durability = durability;
+        this.maxTransactionSegmentBytes = maxTransactionSegmentBytes;
+
+        if (durability == DurabilityMode.GROUP) {
+            this.groupCommitter = new GroupCommitter(new GroupCommitter.BatchWriter() {
+                public void write(List<ProductChange> changes) throws IOException {
+                    saveProductChanges(changes);
+                }
+            });
+        } else {
+            this.groupCommitter = null;
+        }
+
+        if (durability == DurabilityMode.PERIODIC) {
+            this.periodicSync = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "inventory-periodic-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.periodicSync.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        syncAll();
+                    } catch (InventoryException e) {
+                        System.err.println("Error syncing data files: " + e.getMessage());
+                    }
+                }
+            }, PERIODIC_SYNC_MILLIS, PERIODIC_SYNC_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            this.periodicSync = null;
+        }
+    }
+
+    public DurabilityMode getDurability() {
+        return durability;
+    }
+
+    public Duration getTransactionArchiveAge() {
+        return transactionArchiveAge;
+    }
+
+    // Choose how old transaction history gets before it's compressed, or null
+    // to never compress it
+    public void setTransactionArchiveAge(Duration transactionArchiveAge) {
+        this.transactionArchiveAge = transactionArchiveAge;
+    }
+
+    // Load all products from a file
+    public List<Product> loadProducts() throws InventoryException {
+        productsLock.writeLock().lock(); // Nobody may change products while we read them
         try {
-            // Create a file writer
-            ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(PRODUCTS_FILE));
-            // Save the products to the file
-            oos.writeObject(new ArrayList<>(products));
-            oos.close();
+            return openProductStore().load();
         } catch (IOException e) {
-            throw new InventoryException("Failed to save products to file: " + e.getMessage(),
+            throw new InventoryException("Failed to load products from file: " + e.getMessage(),
                     e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
         } finally {
             productsLock.writeLock().unlock(); // Always release the lock when we're done
         }
     }
 
-    // Load all products from a file
-    @SuppressWarnings("unchecked")
-    public List<Product> loadProducts() throws InventoryException {
-        productsLock.readLock().lock(); // Get permission to read from the file
+    // Save one change to the product catalog
+    // The future completes once the change is saved, or fails with an
+    // InventoryException if it couldn't be. With group commit the change waits
+    // in a queue and is saved together with others; otherwise it's saved right
+    // here and the future is already complete when we return.
+    public CompletableFuture<Void> saveProductChange(ProductChange change) {
+        if (groupCommitter != null) {
+            return groupCommitter.submit(change);
+        }
+
+        productsLock.readLock().lock(); // Product changes don't clash with each other, only with a checkpoint
+        try {
+            ProductStore store = openProductStore();
+            store.apply(Collections.singletonList(change));
+            if (durability == DurabilityMode.SYNC) {
+                store.sync();
+            }
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(productWriteError(e));
+        } catch (InventoryException e) {
+            return CompletableFuture.failedFuture(e);
+        } finally {
+            productsLock.readLock().unlock();
+        }
+    }
+
+    // Wait for a change passed to saveProductChange() to be saved
+    public void waitUntilSaved(CompletableFuture<Void> saved) throws InventoryException {
         try {
-            // Check if the file exists
-            File file = new File(PRODUCTS_FILE);
-            if (!file.exists()) {
-                return new ArrayList<>(); // Return empty list if no file exists
+            saved.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InventoryException) {
+                throw (InventoryException) cause;
             }
+            throw new InventoryException("Failed to save product change to file: " + cause.getMessage(),
+                    cause, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
+        }
+    }
 
-            // Create a file reader
-            ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
-            // Load the products from the file
-            List<Product> products = (List<Product>) ois.readObject();
-            ois.close();
-            return products;
-        } catch (ClassNotFoundException e) {
-            throw new InventoryException("Invalid data format in products file",
-                    e, InventoryException.ErrorCode.DATA_FORMAT_ERROR);
+    // True if a product changed since the last checkpoint
+    public boolean hasProductChanges() {
+        ProductStore store = productStore;
+        return store != null && store.hasChanges();
+    }
+
+    // First half of a checkpoint
+    // The caller must make sure no product changes happen between taking its
+    // copy of the products and calling this, so the copy matches exactly what
+    // the checkpoint covers
+    public long startProductCheckpoint() throws InventoryException {
+        // Changes still waiting for a group commit were made before the caller's
+        // copy, so they belong before the checkpoint too
+        if (groupCommitter != null) {
+            groupCommitter.flush();
+        }
+        productsLock.writeLock().lock();
+        try {
+            return openProductStore().startCheckpoint();
         } catch (IOException e) {
-            throw new InventoryException("Failed to load products from file: " + e.getMessage(),
-                    e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
+            throw productWriteError(e);
         } finally {
-            productsLock.readLock().unlock(); // Always release the lock when we're done
+            productsLock.writeLock().unlock();
         }
     }
 
-    // Save all transactions to a file
+    // True if the next checkpoint has to save every product, not just the
+    // changed ones
+    public boolean needsFullProductCheckpoint() throws InventoryException {
+        try {
+            return openProductStore().needsFullCheckpoint();
+        } catch (IOException e) {
+            throw productWriteError(e);
+        }
+    }
+
+    // Second half of a checkpoint: save the products copied for it
+    // This can take a while for a big catalog, so it doesn't block product changes
+    public void finishProductCheckpoint(List<Product> products, long checkpoint) throws InventoryException {
+        try {
+            openProductStore().finishCheckpoint(products, checkpoint);
+        } catch (IOException e) {
+            throw new InventoryException("Failed to save products to file: " + e.getMessage(),
+                    e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
+        }
+    }
+
+    // Second half of a delta checkpoint: save just the products changed since
+    // the last checkpoint and the ids of the ones removed since
+    public void finishDeltaProductCheckpoint(List<Product> changed, List<String> removedIds, long checkpoint)
+            throws InventoryException {
+        try {
+            openProductStore().finishDeltaCheckpoint(changed, removedIds, checkpoint);
+        } catch (IOException e) {
+            throw new InventoryException("Failed to save products to file: " + e.getMessage(),
+                    e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
+        }
+    }
+
+    // Save all transactions to a file, replacing whatever was there
     public void saveTransactions(List<Transaction> transactions) throws InventoryException {
         transactionsLock.writeLock().lock(); // Get permission to write to the file
         try {
-            // Create a file writer
-            ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(TRANSACTIONS_FILE));
-            // Save the transactions to the file
-            oos.writeObject(new ArrayList<>(transactions));
-            oos.close();
+            openTransactionStore().rewrite(transactions);
         } catch (IOException e) {
             throw new InventoryException("Failed to save transactions to file: " + e.getMessage(),
                     e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
@@ -79,25 +260,10 @@ public class InventoryFileManager {
     }
 
     // Load all transactions from a file
-    @SuppressWarnings("unchecked")
     public List<Transaction> loadTransactions() throws InventoryException {
         transactionsLock.readLock().lock(); // Get permission to read from the file
         try {
-            // Check if the file exists
-            File file = new File(TRANSACTIONS_FILE);
-            if (!file.exists()) {
-                return new ArrayList<>(); // Return empty list if no file exists
-            }
-
-            // Create a file reader
-            ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
-            // Load the transactions from the file
-            List<Transaction> transactions = (List<Transaction>) ois.readObject();
-            ois.close();
-            return transactions;
-        } catch (ClassNotFoundException e) {
-            throw new InventoryException("Invalid data format in transactions file",
-                    e, InventoryException.ErrorCode.DATA_FORMAT_ERROR);
+            return openTransactionStore().readAll();
         } catch (IOException e) {
             throw new InventoryException("Failed to load transactions from file: " + e.getMessage(),
                     e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
@@ -106,13 +272,316 @@ public class InventoryFileManager {
         }
     }
 
-    // Add a new transaction to the transactions file
+    // Load one page of transactions, oldest first: skip the first ones, then
+    // load up to limit
+    public List<Transaction> loadTransactions(long offset, int limit) throws InventoryException {
+        transactionsLock.readLock().lock();
+        try {
+            return openTransactionStore().read(offset, limit);
+        } catch (IOException e) {
+            throw new InventoryException("Failed to load transactions from file: " + e.getMessage(),
+                    e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
+        } finally {
+            transactionsLock.readLock().unlock();
+        }
+    }
+
+    // Read the transactions one at a time, oldest first, without loading them
+    // all into memory
+    public void scanTransactions(TransactionJournal.TransactionVisitor visitor) throws InventoryException {
+        transactionsLock.readLock().lock();
+        try {
+            openTransactionStore().scan(visitor);
+        } catch (IOException e) {
+            throw new InventoryException("Failed to load transactions from file: " + e.getMessage(),
+                    e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
+        } finally {
+            transactionsLock.readLock().unlock();
+        }
+    }
+
+    // Load every transaction for one product, oldest first, without reading the
+    // other products' transactions
+    public List<Transaction> loadTransactionsForProduct(String productId) throws InventoryException {
+        transactionsLock.readLock().lock();
+        try {
+            return openTransactionStore().readForProduct(productId);
+        } catch (IOException e) {
+            throw new InventoryException("Failed to load transactions from file: " + e.getMessage(),
+                    e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
+        } finally {
+            transactionsLock.readLock().unlock();
+        }
+    }
+
+    // Load the transactions from one time (included) up to another (not
+    // included), oldest first, reading only the part of the history that
+    // covers the range. If productId isn't null, only that product's.
+    public List<Transaction> loadTransactionsBetween(LocalDateTime from, LocalDateTime to, String productId)
+            throws InventoryException {
+        transactionsLock.readLock().lock();
+        try {
+            return openTransactionStore().readBetween(from, to, productId);
+        } catch (IOException e) {
+            throw new InventoryException("Failed to load transactions from file: " + e.getMessage(),
+                    e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
+        } finally {
+            transactionsLock.readLock().unlock();
+        }
+    }
+
+    // Add a new transaction to the end of the transactions file
+    // This only writes the new record, no matter how many transactions we already have
     public void appendTransaction(Transaction transaction) throws InventoryException {
-        // Load all existing transactions
-        List<Transaction> transactions = loadTransactions();
-        // Add the new transaction
-        transactions.add(transaction);
-        // Save all transactions back to the file
-        saveTransactions(transactions);
+        transactionsLock.readLock().lock(); // Appends don't clash with each other, only with a full rewrite
+        try {
+            TransactionStore opened = openTransactionStore();
+            opened.append(transaction);
+            if (durability == DurabilityMode.SYNC || durability == DurabilityMode.GROUP) {
+                opened.force();
+            }
+        } catch (IOException e) {
+            throw new InventoryException("Failed to append transaction to file: " + e.getMessage(),
+                    e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
+        } finally {
+            transactionsLock.readLock().unlock();
+        }
+    }
+
+    // Add several transactions to the end of the transactions file with a single
+    // write (and a single sync, if we sync)
+    public void appendTransactions(List<Transaction> transactions) throws InventoryException {
+        transactionsLock.readLock().lock();
+        try {
+            TransactionStore opened = openTransactionStore();
+            opened.appendAll(transactions);
+            if (durability == DurabilityMode.SYNC || durability == DurabilityMode.GROUP) {
+                opened.force();
+            }
+        } catch (IOException e) {
+            throw new InventoryException("Failed to append transactions to file: " + e.getMessage(),
+                    e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
+        } finally {
+            transactionsLock.readLock().unlock();
+        }
+    }
+
+    // Load the summaries of compacted transaction history, one per product
+    public List<TransactionSummary> loadTransactionSummaries() throws InventoryException {
+        transactionsLock.readLock().lock();
+        try {
+            return openTransactionStore().readSummaries();
+        } catch (IOException e) {
+            throw new InventoryException("Failed to load transaction summaries from file: " + e.getMessage(),
+                    e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
+        } finally {
+            transactionsLock.readLock().unlock();
+        }
+    }
+
+    // Compact the transaction history segments that only hold transactions from
+    // before the given time. Returns how many segments were compacted.
+    public int compactTransactions(LocalDateTime before) throws InventoryException {
+        transactionsLock.writeLock().lock(); // Nobody may read a segment while we replace it
+        try {
+            return openTransactionStore().compact(before);
+        } catch (IOException e) {
+            throw new InventoryException("Failed to compact transactions file: " + e.getMessage(),
+                    e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
+        } finally {
+            transactionsLock.writeLock().unlock();
+        }
+    }
+
+    // Compress the transaction history that's older than the archive age
+    // Returns how many history segments were compressed
+    public int archiveOldTransactions() throws InventoryException {
+        Duration age = transactionArchiveAge;
+        if (age == null) {
+            return 0;
+        }
+        return archiveTransactions(LocalDateTime.now().minus(age));
+    }
+
+    // Compress the transaction history segments that only hold transactions
+    // from before the given time. They can still be read like before.
+    // Returns how many segments were compressed.
+    public int archiveTransactions(LocalDateTime before) throws InventoryException {
+        synchronized (archiveLock) {
+            try {
+                // Compressing takes a while, but it only reads the segments, so
+                // it doesn't need to keep anyone out
+                List<TransactionSegment> prepared;
+                transactionsLock.readLock().lock();
+                try {
+                    prepared = openTransactionStore().prepareArchive(before);
+                } finally {
+                    transactionsLock.readLock().unlock();
+                }
+
+                // Swapping the files does, but it's quick
+                transactionsLock.writeLock().lock();
+                try {
+                    openTransactionStore().finishArchive(prepared);
+                } finally {
+                    transactionsLock.writeLock().unlock();
+                }
+                return prepared.size();
+            } catch (IOException e) {
+                throw new InventoryException("Failed to archive transactions file: " + e.getMessage(),
+                        e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
+            }
+        }
+    }
+
+    // Make sure everything written so far is on the disk itself
+    // The stores are only looked up under the monitor; syncing happens outside
+    // it, so a slow disk doesn't hold up opening a store. The read locks keep
+    // them from being closed meanwhile.
+    public void syncAll() throws InventoryException {
+        productsLock.readLock().lock();
+        try {
+            ProductStore store;
+            synchronized (this) {
+                store = productStore;
+            }
+            if (store != null) {
+                store.sync();
+            }
+        } catch (IOException e) {
+            throw productWriteError(e);
+        } finally {
+            productsLock.readLock().unlock();
+        }
+
+        transactionsLock.readLock().lock();
+        try {
+            TransactionStore store;
+            synchronized (this) {
+                store = transactionStore;
+            }
+            if (store != null) {
+                store.force();
+            }
+        } catch (IOException e) {
+            throw new InventoryException("Failed to sync transactions file: " + e.getMessage(),
+                    e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
+        } finally {
+            transactionsLock.readLock().unlock();
+        }
+    }
+
+    // Close the files we keep open; they can't be used again after this
+    public void close() throws InventoryException {
+        if (groupCommitter != null) {
+            groupCommitter.close();
+        }
+        if (periodicSync != null) {
+            periodicSync.shutdown();
+        }
+        if (durability != DurabilityMode.BUFFERED) {
+            syncAll();
+        }
+        productsLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                closed = true;
+                if (productStore != null) {
+                    productStore.close();
+                    productStore = null;
+                }
+            }
+        } catch (IOException e) {
+            throw new InventoryException("Failed to close data files: " + e.getMessage(),
+                    e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
+        } finally {
+            productsLock.writeLock().unlock();
+        }
+        transactionsLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (transactionStore != null) {
+                    transactionStore.close();
+                    transactionStore = null;
+                }
+            }
+        } catch (IOException e) {
+            throw new InventoryException("Failed to close data files: " + e.getMessage(),
+                    e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
+        } finally {
+            transactionsLock.writeLock().unlock();
+        }
+    }
+
+    // Open the transaction history the first time we need it
+    // Transaction files from older versions become the first segment
+    private synchronized TransactionStore openTransactionStore() throws IOException, InventoryException {
+        if (closed) {
+            throw closedError();
+        }
+        if (transactionStore == null) {
+            if (!TransactionStore.exists()) {
+                LegacyDataMigrator.migrateTransactions(TransactionStore.firstSegmentPath());
+            }
+            transactionStore = new TransactionStore(maxTransactionSegmentBytes);
+        }
+        return transactionStore;
+    }
+
+    // Save a group of product changes with one write and sync them to the disk
+    // This is what the group committer's flusher thread calls
+    private void saveProductChanges(List<ProductChange> changes) throws IOException {
+        productsLock.readLock().lock();
+        try {
+            ProductStore store = openProductStore();
+            store.apply(changes);
+            store.sync();
+        } catch (InventoryException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            productsLock.readLock().unlock();
+        }
+    }
+
+    // Open the product store the first time we need it
+    // Switching an existing catalog over to the mapped store copies the products
+    // across once; the old files are left where they are
+    private synchronized ProductStore openProductStore() throws IOException, InventoryException {
+        if (closed) {
+            throw closedError();
+        }
+        if (productStore != null) {
+            return productStore;
+        }
+
+        LegacyDataMigrator.migrateProducts();
+        if (productStorage == ProductStorage.MAPPED) {
+            boolean migrate = !MappedProductStore.exists() && LogProductStore.exists();
+            MappedProductStore mapped = new MappedProductStore(durability);
+            if (migrate) {
+                try (LogProductStore old = new LogProductStore()) {
+                    List<ProductChange> changes = new ArrayList<>();
+                    for (Product product : old.load()) {
+                        changes.add(ProductChange.added(product));
+                    }
+                    mapped.apply(changes);
+                }
+                mapped.finishCheckpoint(null, 0);
+            }
+            productStore = mapped;
+        } else {
+            productStore = new LogProductStore();
+        }
+        return productStore;
+    }
+
+    private static InventoryException closedError() {
+        return new InventoryException("The data files have been closed",
+                InventoryException.ErrorCode.FILE_ACCESS_ERROR);
+    }
+
+    private static InventoryException productWriteError(IOException e) {
+        return new InventoryException("Failed to write product change to file: " + e.getMessage(),
+                e, InventoryException.ErrorCode.FILE_ACCESS_ERROR);
     }
 }
\ No newline at end of file
@@ -1,3 +1,8 @@
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
 
@@ -5,17 +10,37 @@ import java.util.Scanner;
  * Main application class for the Inventory Management System
  */
 public class InventoryManagementSystem {
+    // Whether batches run on virtual threads (see TaskExecutors), and how many
+    // lines may be processed at once (read in main())
+    private static final boolean VIRTUAL_THREADS = Boolean.getBoolean("inventory.virtualThreads");
+    private static int BATCH_THREADS;
+
     // These are the main objects we need to run the system
-    private static InventoryManager inventoryManager = new InventoryManager(); // Manages all inventory operations
+    // Manages all inventory operations (created in main(), from the settings)
+    private static InventoryManager inventoryManager;
     private static LowStockAlertHandler alertHandler = new LowStockAlertHandler(); // Handles low stock warnings
     private static Scanner scanner = new Scanner(System.in); // For reading user input
     private static String CURRENT_USER = "admin"; // Who is using the system (in a real system, this would come from
                                                   // login)
+    // How many transactions we show at once
+    private static final int TRANSACTIONS_PER_PAGE = 50;
+    // How dates and times are typed in
+    private static final DateTimeFormatter TIME_INPUT_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
 
     // This is where the program starts
     public static void main(String[] args) {
         System.out.println("Starting Inventory Management System...");
 
+        // Read the settings and open the inventory. A mistyped setting stops
+        // here with a message saying what's allowed.
+        try {
+            BATCH_THREADS = intSetting("inventory.batchThreads", 4, 1);
+            inventoryManager = createInventoryManager();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            return;
+        }
+
         // Set up the low stock warning system
         inventoryManager.addLowStockObserver(alertHandler);
         alertHandler.start();
@@ -65,6 +90,83 @@ public class InventoryManagementSystem {
         System.out.println("Inventory Management System shutdown complete.");
     }
 
+    // Sets up file storage and the inventory manager from the settings (all
+    // of them are listed in README.md)
+    // Run with -Dinventory.productStorage=mapped to keep products in a memory-mapped file,
+    // and with -Dinventory.durability=sync|group|periodic|buffered to choose how hard we
+    // try to get every change onto the disk.
+    // Transactions older than 30 days are compressed; -Dinventory.archiveAfterDays=N
+    // changes that, and -Dinventory.archiveAfterDays=never turns it off.
+    // -Dinventory.transactionQueue says how many transactions may wait to be
+    // recorded, and -Dinventory.transactionOverflow what a stock change does
+    // when that many are waiting (block, caller_runs or fail_fast).
+    // Every setting is checked before anything is opened.
+    private static InventoryManager createInventoryManager() {
+        InventoryFileManager.ProductStorage storage = enumSetting("inventory.productStorage",
+                InventoryFileManager.ProductStorage.LOG);
+        InventoryFileManager.DurabilityMode durability = enumSetting("inventory.durability",
+                InventoryFileManager.DurabilityMode.PERIODIC);
+        Duration archiveAge = InventoryFileManager.DEFAULT_TRANSACTION_ARCHIVE_AGE;
+        if ("never".equalsIgnoreCase(System.getProperty("inventory.archiveAfterDays"))) {
+            archiveAge = null;
+        } else {
+            try {
+                archiveAge = Duration.ofDays(intSetting("inventory.archiveAfterDays", (int) archiveAge.toDays(), 0));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(e.getMessage() + " (or never)");
+            }
+        }
+        int queueCapacity = intSetting("inventory.transactionQueue", TransactionPipeline.DEFAULT_CAPACITY, 1);
+        if (Integer.bitCount(queueCapacity) != 1) {
+            throw new IllegalArgumentException("-Dinventory.transactionQueue must be a power of two (like 1024 or "
+                    + TransactionPipeline.DEFAULT_CAPACITY + "), not " + queueCapacity);
+        }
+        TransactionPipeline.OverflowPolicy overflowPolicy = enumSetting("inventory.transactionOverflow",
+                TransactionPipeline.OverflowPolicy.BLOCK);
+
+        InventoryFileManager fileManager = new InventoryFileManager(storage, durability);
+        fileManager.setTransactionArchiveAge(archiveAge);
+        return new InventoryManager(fileManager, Boolean.getBoolean("inventory.productTable"), queueCapacity,
+                overflowPolicy);
+    }
+
+    // Reads a setting that must be one of an enum's values, in any case
+    // (-Dinventory.durability=group); defaultValue if it isn't set
+    private static <E extends Enum<E>> E enumSetting(String name, E defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        List<String> allowed = new ArrayList<>();
+        for (E constant : defaultValue.getDeclaringClass().getEnumConstants()) {
+            if (constant.name().equalsIgnoreCase(value.trim())) {
+                return constant;
+            }
+            allowed.add(constant.name().toLowerCase());
+        }
+        throw new IllegalArgumentException("Unknown value '" + value + "' for -D" + name + ", use one of: "
+                + String.join(", ", allowed));
+    }
+
+    // Reads a whole number setting of at least min; defaultValue if it isn't
+    // set
+    private static int intSetting(String name, int defaultValue, int min) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int number = Integer.parseInt(value.trim());
+            if (number >= min) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("-D" + name + " must be a whole number of at least " + min
+                + ", not '" + value + "'");
+    }
+
     // Shows the main menu to the user
     private static void displayMainMenu() {
         System.out.println("\n===== INVENTORY MANAGEMENT SYSTEM =====");
@@ -108,12 +210,13 @@ public class InventoryManagementSystem {
             String filePath = getStringInput("Enter CSV file path: ");
 
             // Create a processor that can handle many products at once
-            BatchProcessor batchProcessor = new BatchProcessor(inventoryManager, 4);
+            BatchProcessor batchProcessor = new BatchProcessor(inventoryManager, BATCH_THREADS, VIRTUAL_THREADS);
 
             System.out.println("Processing batch import...");
             BatchProcessor.BatchResult result = batchProcessor.processBatchProductAddition(filePath);
 
             System.out.println(result);
+            System.out.println("Transaction queue: " + inventoryManager.getTransactionQueueStats());
         } catch (Exception e) {
             System.err.println("Error processing batch: " + e.getMessage());
         }
@@ -126,12 +229,13 @@ public class InventoryManagementSystem {
             String filePath = getStringInput("Enter CSV file path: ");
 
             // Create a processor that can handle many updates at once
-            BatchProcessor batchProcessor = new BatchProcessor(inventoryManager, 4);
+            BatchProcessor batchProcessor = new BatchProcessor(inventoryManager, BATCH_THREADS, VIRTUAL_THREADS);
 
             System.out.println("Processing batch stock update...");
             BatchProcessor.BatchResult result = batchProcessor.processBatchStockUpdate(filePath, CURRENT_USER);
 
             System.out.println(result);
+            System.out.println("Transaction queue: " + inventoryManager.getTransactionQueueStats());
         } catch (Exception e) {
             System.err.println("Error processing batch: " + e.getMessage());
         }
@@ -160,6 +264,7 @@ public class InventoryManagementSystem {
                     product.getQuantity(),
                     product.getMinStockLevel());
         }
+        System.out.printf("Total stock value: $%.2f%n", inventoryManager.getTotalStockValue());
     }
 
     // Adds a new product to the system
@@ -194,15 +299,7 @@ public class InventoryManagementSystem {
             String id = getStringInput("Enter product ID to update: ");
 
             // Check if the product exists
-            boolean productExists = false;
-            for (Product p : inventoryManager.getAllProducts()) {
-                if (p.getId().equals(id)) {
-                    productExists = true;
-                    break;
-                }
-            }
-
-            if (!productExists) {
+            if (!inventoryManager.findProductById(id).isPresent()) {
                 System.err.println("Product not found with ID: " + id);
                 return;
             }
@@ -233,15 +330,7 @@ public class InventoryManagementSystem {
             String id = getStringInput("Enter product ID to update stock: ");
 
             // Check if the product exists
-            boolean productExists = false;
-            for (Product p : inventoryManager.getAllProducts()) {
-                if (p.getId().equals(id)) {
-                    productExists = true;
-                    break;
-                }
-            }
-
-            if (!productExists) {
+            if (!inventoryManager.findProductById(id).isPresent()) {
                 System.err.println("Product not found with ID: " + id);
                 return;
             }
@@ -267,13 +356,7 @@ public class InventoryManagementSystem {
                 type = Transaction.TransactionType.ADJUSTMENT;
 
                 // Get current quantity
-                int currentQuantity = 0;
-                for (Product p : inventoryManager.getAllProducts()) {
-                    if (p.getId().equals(id)) {
-                        currentQuantity = p.getQuantity();
-                        break;
-                    }
-                }
+                int currentQuantity = inventoryManager.findProductById(id).map(Product::getQuantity).orElse(0);
 
                 System.out.println("Current quantity: " + currentQuantity);
                 int newQuantity = getIntInput("Enter new quantity: ");
@@ -290,13 +373,7 @@ public class InventoryManagementSystem {
             inventoryManager.updateStock(id, quantityChange, type, CURRENT_USER);
 
             // Get the new quantity
-            int updatedQuantity = 0;
-            for (Product p : inventoryManager.getAllProducts()) {
-                if (p.getId().equals(id)) {
-                    updatedQuantity = p.getQuantity();
-                    break;
-                }
-            }
+            int updatedQuantity = inventoryManager.findProductById(id).map(Product::getQuantity).orElse(0);
 
             System.out.println("Stock updated successfully!");
             System.out.println("New quantity: " + updatedQuantity);
@@ -315,15 +392,7 @@ public class InventoryManagementSystem {
             String id = getStringInput("Enter product ID to remove: ");
 
             // Check if the product exists
-            boolean productExists = false;
-            for (Product p : inventoryManager.getAllProducts()) {
-                if (p.getId().equals(id)) {
-                    productExists = true;
-                    break;
-                }
-            }
-
-            if (!productExists) {
+            if (!inventoryManager.findProductById(id).isPresent()) {
                 System.err.println("Product not found with ID: " + id);
                 return;
             }
@@ -352,13 +421,14 @@ public class InventoryManagementSystem {
 
         int choice = getIntInput("Enter your choice: ");
         List<Product> results;
+        String category = null;
 
         // Search based on user's choice
         if (choice == 1) {
             String name = getStringInput("Enter product name to search: ");
             results = inventoryManager.findProductsByName(name);
         } else if (choice == 2) {
-            String category = getStringInput("Enter product category to search: ");
+            category = getStringInput("Enter product category to search: ");
             results = inventoryManager.findProductsByCategory(category);
         } else {
             System.err.println("Invalid choice.");
@@ -384,6 +454,13 @@ public class InventoryManagementSystem {
                     product.getQuantity(),
                     product.getMinStockLevel());
         }
+
+        // For a category search, also show the category's totals
+        if (category != null) {
+            inventoryManager.getCategorySummary(category).ifPresent(summary -> System.out.printf(
+                    "%d products, %d items in stock, worth $%.2f%n",
+                    summary.getProductCount(), summary.getTotalQuantity(), summary.getTotalValue()));
+        }
     }
 
     // Shows all the changes made to inventory
@@ -391,28 +468,69 @@ public class InventoryManagementSystem {
         System.out.println("\n===== VIEW TRANSACTIONS =====");
         System.out.println("1. View all transactions");
         System.out.println("2. View transactions for a specific product");
+        System.out.println("3. View transactions between two times");
 
         int choice = getIntInput("Enter your choice: ");
-        List<Transaction> transactions;
-
-        // Get transactions based on user's choice
-        if (choice == 1) {
-            transactions = inventoryManager.getAllTransactions();
-        } else if (choice == 2) {
-            listAllProducts();
-            String productId = getStringInput("Enter product ID: ");
-            transactions = inventoryManager.getTransactionsForProduct(productId);
-        } else {
-            System.err.println("Invalid choice.");
-            return;
-        }
 
-        // Show the transactions
-        if (transactions.isEmpty()) {
-            System.out.println("No transactions found.");
-            return;
+        try {
+            if (choice == 1) {
+                // The history can be long, so show it a page at a time
+                long offset = 0;
+                while (true) {
+                    List<Transaction> page = inventoryManager.getTransactions(offset, TRANSACTIONS_PER_PAGE);
+                    if (offset == 0 && page.isEmpty()) {
+                        System.out.println("No transactions found.");
+                        return;
+                    }
+                    printTransactions(page);
+                    offset += page.size();
+                    if (page.size() < TRANSACTIONS_PER_PAGE
+                            || getStringInput("Show more? (y/n): ").equalsIgnoreCase("n")) {
+                        return;
+                    }
+                }
+            } else if (choice == 2) {
+                listAllProducts();
+                String productId = getStringInput("Enter product ID: ");
+                List<Transaction> transactions = inventoryManager.getTransactionsForProduct(productId);
+                TransactionSummary older = null;
+                for (TransactionSummary summary : inventoryManager.getTransactionSummaries()) {
+                    if (summary.getProductId().equals(productId)) {
+                        older = summary;
+                    }
+                }
+                if (transactions.isEmpty() && older == null) {
+                    System.out.println("No transactions found.");
+                    return;
+                }
+                // Old history may have been compacted into a summary
+                if (older != null) {
+                    System.out.printf("Older history: %d transactions from %s to %s, net quantity change %d%n",
+                            older.getTransactionCount(), older.getFirstTimestamp(), older.getLastTimestamp(),
+                            older.getNetQuantityChange());
+                }
+                if (!transactions.isEmpty()) {
+                    printTransactions(transactions);
+                }
+            } else if (choice == 3) {
+                LocalDateTime from = getTimeInput("From (yyyy-MM-dd HH:mm): ");
+                LocalDateTime to = getTimeInput("To (yyyy-MM-dd HH:mm): ");
+                List<Transaction> transactions = inventoryManager.getTransactionsBetween(from, to);
+                if (transactions.isEmpty()) {
+                    System.out.println("No transactions found.");
+                    return;
+                }
+                printTransactions(transactions);
+            } else {
+                System.err.println("Invalid choice.");
+            }
+        } catch (InventoryException e) {
+            System.err.println("Error: " + e.getMessage());
         }
+    }
 
+    // Show a list of transactions as a table
+    private static void printTransactions(List<Transaction> transactions) {
         System.out.println("\n===== TRANSACTION LIST =====");
         System.out.printf("%-36s %-36s %-12s %-10s %-20s %-15s%n",
                 "TRANSACTION ID", "PRODUCT ID", "TYPE", "QUANTITY", "TIMESTAMP", "USER");
@@ -488,4 +606,18 @@ public class InventoryManagementSystem {
             }
         }
     }
+
+    // Get a date and time from user
+    private static LocalDateTime getTimeInput(String prompt) {
+        while (true) {
+            try {
+                System.out.print(prompt);
+                String input = scanner.nextLine().trim();
+                LocalDateTime value = LocalDateTime.parse(input, TIME_INPUT_FORMAT);
+                return value;
+            } catch (DateTimeParseException e) {
+                System.err.println("Please enter a date and time like 2024-01-31 09:00.");
+            }
+        }
+    }
 }
\ No newline at end of file
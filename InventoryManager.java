@@ -1,48 +1,177 @@
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Manages inventory operations with thread safety
  */
 public class InventoryManager {
+    // How often the product catalog is written out as a full snapshot
+    private static final long CHECKPOINT_INTERVAL_SECONDS = 60;
+    // How often we look for old transaction history to compress
+    private static final long ARCHIVE_INTERVAL_MINUTES = 60;
+
     private final InventoryFileManager fileManager;
-    private final List<Product> products;
-    private final List<Transaction> transactions;
-    private final ExecutorService transactionExecutor;
+    // Every product, in the order they were added, keyed by a number handed out
+    // as each one goes in. Adding or removing one is cheap, and readers can go
+    // through it while it changes without it being copied every time.
+    private final ConcurrentSkipListMap<Long, Product> products;
+    // Id -> the key of the product in products (guarded by catalogLock)
+    private final Map<String, Long> productPositions;
+    private long nextProductPosition; // Guarded by catalogLock
+    // Guards the list of products itself; see addToCatalog()
+    private final Object catalogLock = new Object();
+    // Where the products' prices, quantities and minimum stock levels are kept,
+    // if we were asked to keep them in a table; null if they stay in the
+    // Product objects
+    private final ProductTable productTable;
+    // The same products by id, so finding one by id doesn't mean going through
+    // the whole list. Changed together with the list, under the product's lock.
+    private final Map<String, Product> productsById;
+    // The same products by name, ignoring upper and lower case (see foldCase()),
+    // so checking that a name isn't taken is one lookup
+    private final Map<String, Product> productsByName;
+    // The products in each category, with totals
+    private final CategoryIndex categoryIndex;
+    // For finding products by part of their name
+    private final NameSearchIndex nameSearchIndex;
+    // The products in order of stock headroom, so the low stock ones are at the
+    // front
+    private final LowStockIndex lowStockIndex;
+    // Writes the transactions, in order, from one thread
+    private final TransactionPipeline transactionPipeline;
     private final List<LowStockObserver> lowStockObservers;
+    private final ScheduledExecutorService checkpointScheduler;
+    // Changes to different products run side by side; adding or updating the
+    // same product takes turns. Each product id maps to one of these locks, and
+    // a change holds its product's lock while it updates the product, the
+    // indexes and the product log. Stock changes don't use them: they change
+    // the quantity with compare-and-set (see updateStock()).
+    private static final int LOCK_STRIPES = 64;
+    private final Object[] productLocks = new Object[LOCK_STRIPES];
+    // Every change holds the read side, so changes don't hold each other up; a
+    // checkpoint takes the write side so it never sees a change half done, and
+    // so does removing a product, to wait out stock changes to it
+    private final ReentrantReadWriteLock changeLock = new ReentrantReadWriteLock();
+    // Only one checkpoint may run at a time
+    private final Object checkpointLock = new Object();
+    // Set by shutdown(), under the write side of changeLock; every change checks
+    // it under the read side (see checkOpen())
+    private volatile boolean shutDown;
+    // Ids of products removed since the last checkpoint, for delta checkpoints.
+    // Changed products are marked dirty instead.
+    private final Set<String> removedSinceCheckpoint = ConcurrentHashMap.newKeySet();
 
     public InventoryManager() {
-        this.fileManager = new InventoryFileManager();
-        this.products = new CopyOnWriteArrayList<>();
-        this.transactions = new CopyOnWriteArrayList<>();
-        this.transactionExecutor = Executors.newFixedThreadPool(3);
+        this(new InventoryFileManager());
+    }
+
+    public InventoryManager(InventoryFileManager fileManager) {
+        this(fileManager, false);
+    }
+
+    /**
+     * Creates a manager that, if useProductTable is true, keeps the numbers of
+     * every product in a ProductTable instead of in the Product objects. That
+     * suits very large catalogs: there are fewer objects for the garbage
+     * collector to go through, and totals like getTotalStockValue() are a
+     * simple loop over arrays.
+     */
+    public InventoryManager(InventoryFileManager fileManager, boolean useProductTable) {
+        this(fileManager, useProductTable, TransactionPipeline.DEFAULT_CAPACITY,
+                TransactionPipeline.OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Creates a manager whose transactions wait to be recorded in a queue of
+     * transactionQueueCapacity (a power of two). When it's full, a stock
+     * change waits (BLOCK), writes the queued transactions itself
+     * (CALLER_RUNS), or is turned down with TRANSACTION_FAILED (FAIL_FAST).
+     */
+    public InventoryManager(InventoryFileManager fileManager, boolean useProductTable,
+            int transactionQueueCapacity, TransactionPipeline.OverflowPolicy overflowPolicy) {
+        this.fileManager = fileManager;
+        this.productTable = useProductTable ? new ProductTable() : null;
+        this.products = new ConcurrentSkipListMap<>();
+        this.productPositions = new HashMap<>();
+        this.productsById = new ConcurrentHashMap<>();
+        this.productsByName = new ConcurrentHashMap<>();
+        this.categoryIndex = new CategoryIndex();
+        this.nameSearchIndex = new NameSearchIndex();
+        this.lowStockIndex = new LowStockIndex();
+        this.transactionPipeline = new TransactionPipeline(new TransactionPipeline.BatchWriter() {
+            public void write(List<Transaction> transactions) throws InventoryException {
+                fileManager.appendTransactions(transactions);
+            }
+        }, transactionQueueCapacity, overflowPolicy);
         this.lowStockObservers = new ArrayList<>();
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.productLocks[i] = new Object();
+        }
 
-        // Load data from files
+        // Load the products from file
+        // Transactions stay on disk and are read when someone asks for them, so
+        // a long history doesn't slow down startup
         try {
             List<Product> loadedProducts = fileManager.loadProducts();
             for (Product p : loadedProducts) {
-                this.products.add(p);
-            }
-
-            List<Transaction> loadedTransactions = fileManager.loadTransactions();
-            for (Transaction t : loadedTransactions) {
-                this.transactions.add(t);
+                addToCatalog(p);
+                this.productsById.put(p.getId(), p);
+                this.productsByName.putIfAbsent(foldCase(p.getName()), p);
+                this.categoryIndex.add(p);
+                this.nameSearchIndex.add(p);
+                this.lowStockIndex.update(p);
             }
         } catch (InventoryException e) {
             System.err.println("Error loading inventory data: " + e.getMessage());
         }
+
+        // Every change is written to the product log right away, and now and then we
+        // write a full snapshot so the log doesn't keep growing
+        this.checkpointScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "inventory-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.checkpointScheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    checkpoint();
+                } catch (InventoryException e) {
+                    System.err.println("Error writing product snapshot: " + e.getMessage());
+                }
+            }
+        }, CHECKPOINT_INTERVAL_SECONDS, CHECKPOINT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        // Old transaction history is compressed in the background too
+        this.checkpointScheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    fileManager.archiveOldTransactions();
+                } catch (InventoryException e) {
+                    System.err.println("Error archiving old transactions: " + e.getMessage());
+                }
+            }
+        }, 1, ARCHIVE_INTERVAL_MINUTES, TimeUnit.MINUTES);
     }
 
     /**
      * Adds a new product to the inventory
      */
-    public synchronized Product addProduct(String name, String category, double price, int quantity, int minStockLevel)
+    public Product addProduct(String name, String category, double price, int quantity, int minStockLevel)
             throws InventoryException {
         // Validate inputs
         if (price <= 0) {
@@ -55,228 +184,545 @@ public class InventoryManager {
                     InventoryException.ErrorCode.INVALID_QUANTITY);
         }
 
-        // Check for duplicate product name
-        boolean duplicateExists = false;
-        for (Product p : products) {
-            if (p.getName().equalsIgnoreCase(name)) {
-                duplicateExists = true;
-                break;
-            }
+        Product product;
+        CompletableFuture<Void> saved;
+        LowStockIndex.Transition transition;
+        // Place of the initial stock transaction, if any, until it's published
+        // or given up. If anything goes wrong before then, the finally block
+        // gives it up, or the writer would wait for it forever.
+        long sequence = 0;
+        String id = UUID.randomUUID().toString();
+        // Make room for the initial stock transaction before taking any locks.
+        // This is where a full transaction queue waits, or turns the change
+        // down.
+        boolean reserved = quantity > 0;
+        if (reserved) {
+            transactionPipeline.reserve();
         }
+        try {
+            changeLock.readLock().lock();
+            try {
+                checkOpen();
+                synchronized (lockFor(id)) {
+                    // Create new product
+                    product = new Product(id, name, category, price, quantity, minStockLevel);
 
-        if (duplicateExists) {
-            throw new InventoryException("Product with name '" + name + "' already exists",
-                    InventoryException.ErrorCode.DUPLICATE_PRODUCT);
-        }
+                    // Take a place for the initial stock transaction before
+                    // updateStock() can find the product, so its stock changes
+                    // are always recorded after it
+                    if (reserved) {
+                        reserved = false; // claim() uses it up
+                        sequence = transactionPipeline.claim();
+                    }
 
-        // Create new product
-        String id = UUID.randomUUID().toString();
-        Product product = new Product(id, name, category, price, quantity, minStockLevel);
-        products.add(product);
+                    // Claim the name; if another product already has it, it's a duplicate
+                    if (productsByName.putIfAbsent(foldCase(name), product) != null) {
+                        throw new InventoryException("Product with name '" + name + "' already exists",
+                                InventoryException.ErrorCode.DUPLICATE_PRODUCT);
+                    }
 
-        // Save to file
-        try {
-            fileManager.saveProducts(products);
+                    product.markDirty(); // It isn't in any checkpoint yet
+                    // Queue the product for saving before updateStock() can find
+                    // it, so its stock changes are always saved after it
+                    saved = fileManager.saveProductChange(ProductChange.added(product));
+                    addToCatalog(product);
+                    categoryIndex.add(product);
+                    nameSearchIndex.add(product);
+                    transition = lowStockIndex.update(product);
+                    productsById.put(id, product);
+                }
+            } finally {
+                changeLock.readLock().unlock();
+                if (reserved) {
+                    transactionPipeline.unreserve();
+                }
+            }
+
+            // Wait for it to be saved without holding the locks
+            try {
+                fileManager.waitUntilSaved(saved);
+            } catch (InventoryException e) {
+                // Give up the transaction's place before taking the lock
+                if (sequence != 0) {
+                    transactionPipeline.cancel(sequence);
+                    sequence = 0;
+                }
+                // Rollback, with no stock change running (see removeProduct())
+                changeLock.writeLock().lock();
+                try {
+                    productsById.remove(product.getId());
+                    removeFromCatalog(product);
+                    productsByName.remove(foldCase(product.getName()), product);
+                    categoryIndex.remove(product);
+                    nameSearchIndex.remove(product);
+                    lowStockIndex.remove(product);
+                    removedSinceCheckpoint.add(product.getId());
+                } finally {
+                    changeLock.writeLock().unlock();
+                }
+                throw e;
+            }
 
             // Create transaction for initial stock
-            if (quantity > 0) {
-                recordTransaction(product.getId(), Transaction.TransactionType.PURCHASE, quantity, "system");
+            if (sequence != 0) {
+                recordTransaction(sequence, product.getId(), Transaction.TransactionType.PURCHASE, quantity,
+                        "system");
+                sequence = 0;
+            }
+        } finally {
+            if (sequence != 0) {
+                transactionPipeline.cancel(sequence);
             }
+        }
 
-            // Check for low stock
-            checkLowStock(product);
+        // Tell the observers if it starts out low on stock
+        notifyLowStockObservers(product, transition);
 
-            return product;
-        } catch (InventoryException e) {
-            // Rollback
-            products.remove(product);
-            throw e;
-        }
+        return product;
     }
 
     /**
      * Updates an existing product
      */
-    public synchronized Product updateProduct(String id, String name, String category, double price, int minStockLevel)
+    public Product updateProduct(String id, String name, String category, double price, int minStockLevel)
             throws InventoryException {
-        // Find product
         Product product = null;
-        for (Product p : products) {
-            if (p.getId().equals(id)) {
-                product = p;
-                break;
-            }
-        }
+        CompletableFuture<Void> saved;
+        LowStockIndex.Transition transition;
+        changeLock.readLock().lock();
+        try {
+            checkOpen();
+            synchronized (lockFor(id)) {
+                // Find product
+                product = productsById.get(id);
 
-        if (product == null) {
-            throw new InventoryException("Product not found with ID: " + id,
-                    InventoryException.ErrorCode.PRODUCT_NOT_FOUND);
-        }
+                if (product == null) {
+                    throw new InventoryException("Product not found with ID: " + id,
+                            InventoryException.ErrorCode.PRODUCT_NOT_FOUND);
+                }
 
-        // Validate inputs
-        if (price <= 0) {
-            throw new InventoryException("Price must be greater than zero",
-                    InventoryException.ErrorCode.INVALID_PRICE);
-        }
+                // Validate inputs
+                if (price <= 0) {
+                    throw new InventoryException("Price must be greater than zero",
+                            InventoryException.ErrorCode.INVALID_PRICE);
+                }
 
-        // Check for duplicate name if name is changing
-        if (!product.getName().equals(name)) {
-            boolean duplicateExists = false;
-            for (Product p : products) {
-                if (p.getName().equalsIgnoreCase(name)) {
-                    duplicateExists = true;
-                    break;
+                // Check for duplicate name if name is changing, by claiming the new
+                // name and then letting go of the old one
+                String oldKey = foldCase(product.getName());
+                String newKey = foldCase(name);
+                if (!newKey.equals(oldKey)) {
+                    if (productsByName.putIfAbsent(newKey, product) != null) {
+                        throw new InventoryException("Product with name '" + name + "' already exists",
+                                InventoryException.ErrorCode.DUPLICATE_PRODUCT);
+                    }
+                    productsByName.remove(oldKey, product);
                 }
-            }
 
-            if (duplicateExists) {
-                throw new InventoryException("Product with name '" + name + "' already exists",
-                        InventoryException.ErrorCode.DUPLICATE_PRODUCT);
+                // Update product
+                categoryIndex.remove(product);
+                nameSearchIndex.remove(product);
+                product.setName(name);
+                product.setCategory(category);
+                product.setPrice(price);
+                product.setMinStockLevel(minStockLevel);
+                categoryIndex.add(product);
+                nameSearchIndex.add(product);
+                transition = lowStockIndex.update(product);
+                saved = fileManager.saveProductChange(ProductChange.updated(product));
             }
+        } finally {
+            changeLock.readLock().unlock();
         }
 
-        // Update product
-        product.setName(name);
-        product.setCategory(category);
-        product.setPrice(price);
-        product.setMinStockLevel(minStockLevel);
+        // Wait for it to be saved without holding the locks
+        fileManager.waitUntilSaved(saved);
 
-        // Save to file
-        try {
-            fileManager.saveProducts(products);
-
-            // Check for low stock
-            checkLowStock(product);
+        // Tell the observers if the new minimum stock level made it low on stock,
+        // or stopped it being low
+        notifyLowStockObservers(product, transition);
 
-            return product;
-        } catch (InventoryException e) {
-            throw e;
-        }
+        return product;
     }
 
     /**
      * Updates product quantity and records a transaction
      */
-    public synchronized void updateStock(String productId, int quantityChange, Transaction.TransactionType type,
+    public void updateStock(String productId, int quantityChange, Transaction.TransactionType type,
             String userId)
             throws InventoryException {
-        // Find product
         Product product = null;
-        for (Product p : products) {
-            if (p.getId().equals(productId)) {
-                product = p;
-                break;
+        CompletableFuture<Void> saved;
+        LowStockIndex.Transition transition;
+        // Our place in the transaction order, until the transaction is
+        // published or the place given up (see addProduct())
+        long sequence = 0;
+        try {
+            // No product lock here: the quantity is changed with compare-and-set,
+            // so sales of the same product don't wait for each other. The read
+            // lock only keeps a checkpoint (or a removal) from running in the
+            // middle.
+            while (true) {
+                // Make room for the transaction before taking any locks. A full
+                // transaction queue waits here, or (with the FAIL_FAST policy)
+                // turns the change down before anything changed.
+                transactionPipeline.reserve();
+                boolean reserved = true;
+                changeLock.readLock().lock();
+                try {
+                    checkOpen();
+                    // Find product
+                    product = productsById.get(productId);
+
+                    if (product == null) {
+                        throw new InventoryException("Product not found with ID: " + productId,
+                                InventoryException.ErrorCode.PRODUCT_NOT_FOUND);
+                    }
+
+                    reserved = false; // claim() uses it up
+                    sequence = transactionPipeline.claim();
+                    if (changeStock(product, quantityChange, type, sequence)) {
+                        categoryIndex.refresh(product);
+                        transition = lowStockIndex.update(product);
+                        saved = fileManager.saveProductChange(ProductChange.stockChanged(product));
+                        break;
+                    }
+                    // A change that took its place after ours got in first. Give
+                    // our place back and take a new one; that happens outside the
+                    // lock, since reserve() may have to wait.
+                    transactionPipeline.cancel(sequence);
+                    sequence = 0;
+                } finally {
+                    changeLock.readLock().unlock();
+                    if (reserved) {
+                        transactionPipeline.unreserve();
+                    }
+                }
             }
-        }
 
-        if (product == null) {
-            throw new InventoryException("Product not found with ID: " + productId,
-                    InventoryException.ErrorCode.PRODUCT_NOT_FOUND);
-        }
+            // Wait for it to be saved without holding the locks, so other stock
+            // updates can join the same group commit
+            try {
+                fileManager.waitUntilSaved(saved);
+            } catch (InventoryException e) {
+                long claimed = sequence;
+                sequence = 0; // The rollback publishes or gives up the place
+                rollbackStockChange(product, quantityChange, claimed, type, userId, transition, e);
+            }
 
-        // Check for sufficient stock if removing items
-        if (type == Transaction.TransactionType.SALE && Math.abs(quantityChange) > product.getQuantity()) {
-            throw new InventoryException("Insufficient stock. Available: " + product.getQuantity() +
-                    ", Requested: " + Math.abs(quantityChange),
-                    InventoryException.ErrorCode.INSUFFICIENT_STOCK);
+            // Record transaction asynchronously
+            recordTransaction(sequence, productId, type, quantityChange, userId);
+            sequence = 0;
+        } finally {
+            if (sequence != 0) {
+                transactionPipeline.cancel(sequence);
+            }
         }
 
-        // Update quantity
-        int newQuantity = product.getQuantity() + quantityChange;
-        if (newQuantity < 0) {
-            throw new InventoryException("Operation would result in negative stock",
-                    InventoryException.ErrorCode.INVALID_QUANTITY);
-        }
+        // Tell the observers if it just ran low on stock, or was restocked
+        notifyLowStockObservers(product, transition);
+    }
 
-        product.setQuantity(newQuantity);
+    /**
+     * Changes the stock of a product by quantityChange with compare-and-set,
+     * trying again if another thread changed it between reading it and setting
+     * it, so the checks always see the real count. The same compare-and-set
+     * puts our sequence number in the product's stock state, and it's only
+     * done while the last change there took its place in the transaction order
+     * before ours; that way a product's transactions are recorded in the order
+     * its stock changed. Returns false, without changing anything, if a later
+     * place got in first.
+     */
+    private boolean changeStock(Product product, int quantityChange, Transaction.TransactionType type,
+            long sequence) throws InventoryException {
+        while (true) {
+            long state = product.getStockState();
+            if (changedAfter(state, sequence)) {
+                return false;
+            }
+            int current = Product.quantityOf(state);
 
-        // Save to file
-        try {
-            fileManager.saveProducts(products);
+            // Check for sufficient stock if removing items
+            if (type == Transaction.TransactionType.SALE && Math.abs(quantityChange) > current) {
+                throw new InventoryException("Insufficient stock. Available: " + current +
+                        ", Requested: " + Math.abs(quantityChange),
+                        InventoryException.ErrorCode.INSUFFICIENT_STOCK);
+            }
 
-            // Record transaction asynchronously
-            recordTransaction(productId, type, quantityChange, userId);
+            int newQuantity = current + quantityChange;
+            if (newQuantity < 0) {
+                throw new InventoryException("Operation would result in negative stock",
+                        InventoryException.ErrorCode.INVALID_QUANTITY);
+            }
 
-            // Check for low stock
-            checkLowStock(product);
-        } catch (InventoryException e) {
-            // Rollback
-            product.setQuantity(product.getQuantity() - quantityChange);
-            throw e;
+            if (product.compareAndSetStockState(state, Product.stockState(newQuantity, sequence))) {
+                return true;
+            }
         }
     }
 
     /**
-     * Removes a product from inventory
+     * Whether the stock change that left this stock state took its place in
+     * the transaction order after sequence. The state only keeps the low 32
+     * bits of that place, so we take the nearest place after ours that ends in
+     * them; if it hasn't been handed out yet, the change was before ours. (A
+     * change more than 2^31 places old can still look like a later one, which
+     * costs one extra try in updateStock().)
      */
-    public synchronized void removeProduct(String productId) throws InventoryException {
-        // Find product
-        Product product = null;
-        for (Product p : products) {
-            if (p.getId().equals(productId)) {
-                product = p;
-                break;
+    private boolean changedAfter(long stockState, long sequence) {
+        int ahead = Product.sequenceOf(stockState) - (int) sequence;
+        return ahead > 0 && sequence + ahead <= transactionPipeline.getLastClaimedSequence();
+    }
+
+    /**
+     * Takes back a stock change that couldn't be saved and throws why. Only our
+     * change is taken back, since others may have come since, and with the same
+     * compare-and-set and checks as making it, so the count never goes below
+     * zero. If later sales have already used the stock we added (or the product
+     * was removed meanwhile), the change can't be taken back: it's kept and
+     * recorded, and the error says so.
+     */
+    private void rollbackStockChange(Product product, int quantityChange, long sequence,
+            Transaction.TransactionType type, String userId, LowStockIndex.Transition transition,
+            InventoryException error) throws InventoryException {
+        String productId = product.getId();
+        boolean undone = false;
+        boolean settled = false; // Whether our place has been published or given up
+        CompletableFuture<Void> saved = null;
+        changeLock.readLock().lock();
+        try {
+            if (productsById.get(productId) == product) {
+                while (true) {
+                    long state = product.getStockState();
+                    int restored = Product.quantityOf(state) - quantityChange;
+                    if (restored < 0) {
+                        break;
+                    }
+                    // The state keeps the place of the last change made: ours
+                    // is taken back, not made again
+                    if (product.compareAndSetStockState(state,
+                            Product.stockState(restored, Product.sequenceOf(state)))) {
+                        undone = true;
+                        break;
+                    }
+                }
+                categoryIndex.refresh(product);
+                lowStockIndex.update(product);
+                // Save the count as it is now: another stock change may already
+                // have saved one that included ours
+                saved = fileManager.saveProductChange(ProductChange.stockChanged(product));
+            }
+
+            // Our place in the transaction order is still held, so a kept change
+            // is recorded where it happened
+            if (undone) {
+                transactionPipeline.cancel(sequence);
+            } else {
+                recordTransaction(sequence, productId, type, quantityChange, userId);
+            }
+            settled = true;
+        } finally {
+            changeLock.readLock().unlock();
+            if (!settled) {
+                transactionPipeline.cancel(sequence);
             }
         }
 
-        if (product == null) {
-            throw new InventoryException("Product not found with ID: " + productId,
-                    InventoryException.ErrorCode.PRODUCT_NOT_FOUND);
+        if (saved != null) {
+            try {
+                fileManager.waitUntilSaved(saved);
+            } catch (InventoryException e) {
+                error.addSuppressed(e);
+            }
+        }
+        if (undone) {
+            throw error;
         }
 
-        // Remove product
-        products.remove(product);
+        notifyLowStockObservers(product, transition);
+        String reason = saved == null ? "the product was removed meanwhile"
+                : "later changes have already used the stock";
+        throw new InventoryException("Failed to save the stock change for product " + productId
+                + " and it could not be taken back, because " + reason + ". The change has been kept.",
+                error, InventoryException.ErrorCode.TRANSACTION_FAILED);
+    }
 
-        // Save to file
+    /**
+     * Removes a product from inventory
+     */
+    public void removeProduct(String productId) throws InventoryException {
+        Product product = null;
+        CompletableFuture<Void> saved;
+        // Our place in the transaction order, until the transaction is
+        // published or the place given up (see addProduct())
+        long sequence = 0;
+        // Make room for the transaction before taking the lock, in case the
+        // queue is full
+        transactionPipeline.reserve();
+        boolean reserved = true;
         try {
-            fileManager.saveProducts(products);
+            // The write lock waits for stock changes in progress, so none of them
+            // is saved or recorded after the removal, or changes the product
+            // while it leaves the product table
+            changeLock.writeLock().lock();
+            try {
+                checkOpen();
+                // Find product
+                product = productsById.get(productId);
+
+                if (product == null) {
+                    throw new InventoryException("Product not found with ID: " + productId,
+                            InventoryException.ErrorCode.PRODUCT_NOT_FOUND);
+                }
+
+                reserved = false; // claim() uses it up
+                sequence = transactionPipeline.claim();
+
+                // Remove product
+                productsById.remove(productId);
+                removeFromCatalog(product);
+                productsByName.remove(foldCase(product.getName()), product);
+                categoryIndex.remove(product);
+                nameSearchIndex.remove(product);
+                lowStockIndex.remove(product);
+                removedSinceCheckpoint.add(productId);
+                saved = fileManager.saveProductChange(ProductChange.removed(productId));
+            } finally {
+                changeLock.writeLock().unlock();
+                if (reserved) {
+                    transactionPipeline.unreserve();
+                }
+            }
+
+            // Wait for it to be saved without holding the locks
+            try {
+                fileManager.waitUntilSaved(saved);
+            } catch (InventoryException e) {
+                // Rollback, unless another product has been added with the same
+                // name meanwhile: putting this one back would give two products
+                // one name
+                CompletableFuture<Void> savedAgain = null;
+                changeLock.writeLock().lock();
+                try {
+                    Product other = productsByName.putIfAbsent(foldCase(product.getName()), product);
+                    if (other == null) {
+                        transactionPipeline.cancel(sequence);
+                        sequence = 0;
+                        addToCatalog(product);
+                        categoryIndex.add(product);
+                        nameSearchIndex.add(product);
+                        lowStockIndex.update(product);
+                        removedSinceCheckpoint.remove(productId);
+                        product.markDirty(); // A checkpoint may have left it out meanwhile
+                        productsById.put(productId, product);
+                    } else {
+                        // It stays removed, so try saving that again and record it
+                        savedAgain = fileManager.saveProductChange(ProductChange.removed(productId));
+                        recordTransaction(sequence, productId, Transaction.TransactionType.ADJUSTMENT,
+                                -product.getQuantity(), "system");
+                        sequence = 0;
+                    }
+                } finally {
+                    changeLock.writeLock().unlock();
+                }
+                if (savedAgain == null) {
+                    throw e;
+                }
+                try {
+                    fileManager.waitUntilSaved(savedAgain);
+                } catch (InventoryException again) {
+                    e.addSuppressed(again);
+                }
+                throw new InventoryException("Failed to save the removal of product " + productId
+                        + " and it could not be undone, because another product named '" + product.getName()
+                        + "' has been added since. It stays removed.",
+                        e, InventoryException.ErrorCode.DUPLICATE_PRODUCT);
+            }
 
             // Record transaction
-            recordTransaction(productId, Transaction.TransactionType.ADJUSTMENT, -product.getQuantity(), "system");
-        } catch (InventoryException e) {
-            // Rollback
-            products.add(product);
-            throw e;
+            recordTransaction(sequence, productId, Transaction.TransactionType.ADJUSTMENT, -product.getQuantity(),
+                    "system");
+            sequence = 0;
+        } finally {
+            if (sequence != 0) {
+                transactionPipeline.cancel(sequence);
+            }
         }
     }
 
     /**
-     * Records a transaction asynchronously
+     * Turns a change down once shutdown() has started. Called with changeLock
+     * held, so a change either finishes before shutdown() goes on or doesn't
+     * start at all.
      */
-    private void recordTransaction(String productId, Transaction.TransactionType type, int quantity, String userId) {
-        transactionExecutor.submit(new Runnable() {
-            public void run() {
-                try {
-                    String transactionId = UUID.randomUUID().toString();
-                    Transaction transaction = new Transaction(transactionId, productId, type, quantity, userId);
-                    transactions.add(transaction);
-                    fileManager.appendTransaction(transaction);
-                } catch (InventoryException e) {
-                    System.err.println("Error recording transaction: " + e.getMessage());
-                }
-            }
-        });
+    private void checkOpen() throws InventoryException {
+        if (shutDown) {
+            throw new InventoryException("The inventory has been shut down",
+                    InventoryException.ErrorCode.TRANSACTION_FAILED);
+        }
+    }
+
+    /**
+     * Records a transaction asynchronously, in the place claimed for it with
+     * transactionPipeline.claim()
+     */
+    private void recordTransaction(long sequence, String productId, Transaction.TransactionType type, int quantity,
+            String userId) {
+        String transactionId = UUID.randomUUID().toString();
+        Transaction transaction = new Transaction(transactionId, productId, type, quantity, userId);
+        transactionPipeline.publish(sequence, transaction);
+    }
+
+    /**
+     * The sequence number up to which every transaction has been written to
+     * the transactions file, counting from 1 since this manager started (0 if
+     * none yet). Every stock change's transaction gets the next number, in the
+     * order the changes happened. If a transaction fails to be written, this
+     * stops just before it; getTransactionQueueStats() counts the failures.
+     */
+    public long getLastDurableTransactionSequence() {
+        return transactionPipeline.getLastDurableSequence();
+    }
+
+    /**
+     * How many transactions are waiting to be recorded, the most there have
+     * been, how often the queue was full, and how many failed to be recorded
+     */
+    public TransactionPipeline.QueueStats getTransactionQueueStats() {
+        return transactionPipeline.getStats();
     }
 
     /**
      * Finds a product by ID
      */
     public Optional<Product> findProductById(String id) {
-        for (Product p : products) {
-            if (p.getId().equals(id)) {
-                return Optional.of(p);
-            }
-        }
-        return Optional.empty();
+        return Optional.ofNullable(productsById.get(id));
     }
 
     /**
      * Finds products by name (partial match)
      */
     public List<Product> findProductsByName(String name) {
-        List<Product> result = new ArrayList<>();
-        for (Product p : products) {
-            if (p.getName().toLowerCase().contains(name.toLowerCase())) {
+        // The index gives the ids in no particular order, so sort them by
+        // where the products are in the catalog, the order the old search
+        // through the whole list gave
+        List<String> ids = nameSearchIndex.search(name);
+        long[] positions = new long[ids.size()];
+        int count = 0;
+        synchronized (catalogLock) {
+            for (String id : ids) {
+                Long position = productPositions.get(id);
+                if (position != null) {
+                    positions[count++] = position;
+                }
+            }
+        }
+        Arrays.sort(positions, 0, count);
+
+        List<Product> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Product p = products.get(positions[i]);
+            if (p != null) {
                 result.add(p);
             }
         }
@@ -288,43 +734,103 @@ public class InventoryManager {
      */
     public List<Product> findProductsByCategory(String category) {
         List<Product> result = new ArrayList<>();
-        for (Product p : products) {
-            if (p.getCategory().equalsIgnoreCase(category)) {
+        for (String id : categoryIndex.productIds(category)) {
+            Product p = productsById.get(id);
+            if (p != null) {
                 result.add(p);
             }
         }
         return result;
     }
 
+    /**
+     * Gets the product count and stock totals for a category
+     */
+    public Optional<CategoryIndex.CategorySummary> getCategorySummary(String category) {
+        return Optional.ofNullable(categoryIndex.summary(category));
+    }
+
+    /**
+     * Gets the product count and stock totals for every category
+     */
+    public List<CategoryIndex.CategorySummary> getCategorySummaries() {
+        return categoryIndex.summaries();
+    }
+
     /**
      * Gets all products
      */
     public List<Product> getAllProducts() {
-        List<Product> result = new ArrayList<>();
-        for (Product p : products) {
-            result.add(p);
-        }
-        return result;
+        return new ArrayList<>(products.values());
     }
 
     /**
-     * Gets all transactions
+     * Gets what all the stock is worth: price times quantity, added up over
+     * every product
      */
-    public List<Transaction> getAllTransactions() {
-        List<Transaction> result = new ArrayList<>();
-        for (Transaction t : transactions) {
-            result.add(t);
+    public double getTotalStockValue() {
+        if (productTable != null) {
+            return productTable.totalValue();
         }
-        return result;
+        double total = 0;
+        for (Product p : products.values()) {
+            total += p.getPrice() * p.getQuantity();
+        }
+        return total;
+    }
+
+    /**
+     * Gets all transactions, oldest first
+     * This reads the whole history from disk, so prefer getTransactions() for
+     * showing it a page at a time. History that has been compacted (see
+     * compactTransactionHistory()) is not included; getTransactionSummaries()
+     * has what's left of it. Throws an InventoryException if the history
+     * can't be read.
+     */
+    public List<Transaction> getAllTransactions() throws InventoryException {
+        return fileManager.loadTransactions();
+    }
+
+    /**
+     * Gets one page of transactions, oldest first
+     */
+    public List<Transaction> getTransactions(long offset, int limit) throws InventoryException {
+        return fileManager.loadTransactions(offset, limit);
+    }
+
+    /**
+     * Gets transactions for a specific product, oldest first
+     * As with getAllTransactions(), compacted history is not included, and an
+     * InventoryException means the history couldn't be read.
+     */
+    public List<Transaction> getTransactionsForProduct(String productId) throws InventoryException {
+        return fileManager.loadTransactionsForProduct(productId);
+    }
+
+    /**
+     * Gets the transactions from one time (included) up to another (not
+     * included), oldest first. Only the part of the history that covers the
+     * range is read.
+     */
+    public List<Transaction> getTransactionsBetween(LocalDateTime from, LocalDateTime to)
+            throws InventoryException {
+        return getTransactionsBetween(from, to, null, null, null);
     }
 
     /**
-     * Gets transactions for a specific product
+     * Gets the transactions from one time (included) up to another (not
+     * included), oldest first, keeping only those for the given product, of the
+     * given type and by the given user. Leave any of those null to not filter
+     * on it.
      */
-    public List<Transaction> getTransactionsForProduct(String productId) {
+    public List<Transaction> getTransactionsBetween(LocalDateTime from, LocalDateTime to, String productId,
+            Transaction.TransactionType type, String userId) throws InventoryException {
         List<Transaction> result = new ArrayList<>();
-        for (Transaction t : transactions) {
-            if (t.getProductId().equals(productId)) {
+        if (!from.isBefore(to)) {
+            return result;
+        }
+        for (Transaction t : fileManager.loadTransactionsBetween(from, to, productId)) {
+            if ((type == null || t.getType() == type) && (userId == null || t.getUserId().equals(userId))) {
                 result.add(t);
             }
         }
@@ -332,26 +838,100 @@ public class InventoryManager {
     }
 
     /**
-     * Gets low stock products
+     * Gets the summaries of compacted transaction history, one per product
+     */
+    public List<TransactionSummary> getTransactionSummaries() throws InventoryException {
+        return fileManager.loadTransactionSummaries();
+    }
+
+    /**
+     * Compacts transaction history from before the given time into one summary
+     * per product. Returns how many history segments were compacted.
+     */
+    public int compactTransactionHistory(LocalDateTime before) throws InventoryException {
+        return fileManager.compactTransactions(before);
+    }
+
+    /**
+     * Gets low stock products, the ones with the least stock to spare first
      */
     public List<Product> getLowStockProducts() {
+        return productsFor(lowStockIndex.lowStockIds());
+    }
+
+    /**
+     * Gets the products with the least stock to spare (quantity minus minimum
+     * stock level), whether or not they're low on stock yet, most critical first
+     */
+    public List<Product> getMostCriticalProducts(int limit) {
+        return productsFor(lowStockIndex.mostCriticalIds(limit));
+    }
+
+    // The products for a list of ids, skipping any removed in the meantime
+    private List<Product> productsFor(List<String> ids) {
         List<Product> result = new ArrayList<>();
-        for (Product p : products) {
-            if (p.isLowStock()) {
-                result.add(p);
+        for (String id : ids) {
+            Product product = productsById.get(id);
+            if (product != null) {
+                result.add(product);
             }
         }
         return result;
     }
 
+    // The lock for changes to one product
+    private Object lockFor(String productId) {
+        return productLocks[Math.floorMod(productId.hashCode(), LOCK_STRIPES)];
+    }
+
+    // Put a product at the end of the catalog
+    // Products with different locks can be added at the same time, so the
+    // list's own bookkeeping has a lock of its own
+    private void addToCatalog(Product product) {
+        synchronized (catalogLock) {
+            long position = nextProductPosition++;
+            productPositions.put(product.getId(), position);
+            products.put(position, product);
+        }
+        if (productTable != null) {
+            product.moveInto(productTable);
+        }
+    }
+
+    // Take a product out of the catalog
+    private void removeFromCatalog(Product product) {
+        synchronized (catalogLock) {
+            Long position = productPositions.remove(product.getId());
+            if (position != null) {
+                products.remove(position);
+            }
+        }
+        product.moveOut();
+    }
+
     /**
-     * Checks if a product is low on stock and notifies observers
+     * The key a name or category is kept under in the indexes. Two strings get
+     * the same key exactly when equalsIgnoreCase() says they're equal.
      */
-    private void checkLowStock(Product product) {
-        if (product.isLowStock()) {
-            for (int i = 0; i < lowStockObservers.size(); i++) {
-                LowStockObserver observer = lowStockObservers.get(i);
+    static String foldCase(String text) {
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Notifies observers when a product has just become low on stock, or has
+     * just stopped being low. Products that stay low aren't reported again.
+     */
+    private void notifyLowStockObservers(Product product, LowStockIndex.Transition transition) {
+        for (int i = 0; i < lowStockObservers.size(); i++) {
+            LowStockObserver observer = lowStockObservers.get(i);
+            if (transition == LowStockIndex.Transition.BECAME_LOW) {
                 observer.onLowStock(product);
+            } else if (transition == LowStockIndex.Transition.RESTORED) {
+                observer.onStockRestored(product);
             }
         }
     }
@@ -371,16 +951,105 @@ public class InventoryManager {
     }
 
     /**
-     * Shuts down the executor service
+     * Writes the product catalog out so the product log written before it can
+     * be deleted. Usually only the products changed since the last checkpoint
+     * are written (a delta); now and then the whole catalog is (a full
+     * checkpoint). Runs in the background every CHECKPOINT_INTERVAL_SECONDS and
+     * once more on shutdown.
+     */
+    public void checkpoint() throws InventoryException {
+        synchronized (checkpointLock) {
+            List<Product> snapshot = new ArrayList<>();
+            List<String> removedIds;
+            boolean full;
+            long generation;
+
+            // Copy the products and switch log files while no change can happen, so
+            // the copy matches the log exactly. Writing the copy out happens after
+            // we let go of the lock.
+            changeLock.writeLock().lock();
+            try {
+                if (!fileManager.hasProductChanges()) {
+                    return;
+                }
+                full = fileManager.needsFullProductCheckpoint();
+                generation = fileManager.startProductCheckpoint();
+                for (Product p : products.values()) {
+                    if (full || p.isDirty()) {
+                        snapshot.add(p.copy());
+                        p.clearDirty();
+                    }
+                }
+                removedIds = new ArrayList<>(removedSinceCheckpoint);
+                removedSinceCheckpoint.clear();
+            } finally {
+                changeLock.writeLock().unlock();
+            }
+
+            // If this fails the store makes the next checkpoint a full one, since
+            // the products we just copied are no longer marked dirty
+            if (full) {
+                fileManager.finishProductCheckpoint(snapshot, generation);
+            } else {
+                fileManager.finishDeltaProductCheckpoint(snapshot, removedIds, generation);
+            }
+        }
+    }
+
+    /**
+     * Stops taking changes, records every transaction still queued, writes a
+     * final snapshot and closes the data files. Any change made after this
+     * (adding, updating or removing a product, or changing its stock) fails
+     * with TRANSACTION_FAILED.
      */
     public void shutdown() {
-        transactionExecutor.shutdown();
+        // Turn down any change from now on, and wait for the ones in progress
+        changeLock.writeLock().lock();
+        try {
+            if (shutDown) {
+                return;
+            }
+            shutDown = true;
+        } finally {
+            changeLock.writeLock().unlock();
+        }
+
+        // Let a checkpoint that's running finish first
+        checkpointScheduler.shutdown();
+        try {
+            checkpointScheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Write out the queued transactions, including those of changes still
+        // waiting to be saved
+        transactionPipeline.close();
+        try {
+            checkpoint();
+        } catch (InventoryException e) {
+            System.err.println("Error writing product snapshot: " + e.getMessage());
+        }
+        try {
+            fileManager.close();
+        } catch (InventoryException e) {
+            System.err.println("Error closing data files: " + e.getMessage());
+        }
     }
 
     /**
      * Interface for low stock observers
      */
     public interface LowStockObserver {
+        /**
+         * Called when a product has just become low on stock
+         */
         void onLowStock(Product product);
+
+        /**
+         * Called when a product that was low on stock no longer is
+         */
+        default void onStockRestored(Product product) {
+        }
     }
 }
\ No newline at end of file
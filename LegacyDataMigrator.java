@@ -0,0 +1,89 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+// This class converts data files written by older versions of the program
+// Older versions saved products and transactions with Java serialization
+// (ObjectOutputStream). We read those files once, write their contents in the
+// current format and keep the old file next to it with a .bak ending.
+public class LegacyDataMigrator {
+    // Older versions kept every transaction in one serialized list in this file
+    private static final String LEGACY_TRANSACTIONS_FILE = "transactions.dat";
+
+    // Java serialization streams start with these two bytes
+    private static final int JAVA_SERIALIZATION_MAGIC = 0xACED;
+
+    // Convert products.dat if it was written with Java serialization
+    public static void migrateProducts() throws IOException, InventoryException {
+        Path path = LogProductStore.snapshotPath();
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        List<Product> products;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(path.toFile()))) {
+            in.mark(2);
+            if (new DataInputStream(in).readUnsignedShort() != JAVA_SERIALIZATION_MAGIC) {
+                return; // Already in the current format
+            }
+            in.reset();
+            products = readSerializedList(in, "products");
+        }
+
+        System.out.println("Converting " + path + " (" + products.size() + " products) to the new file format...");
+        Files.copy(path, Paths.get(path + ".bak"), StandardCopyOption.REPLACE_EXISTING);
+        // It was written before there was a product log, so it's a checkpoint
+        // of generation 0
+        try (LogProductStore store = new LogProductStore()) {
+            store.finishCheckpoint(products, 0);
+        }
+    }
+
+    // Turn the transactions from an older version into the first segment of
+    // the transaction history, if there's no history in segments yet
+    public static void migrateTransactions(Path journalPath) throws IOException, InventoryException {
+        if (Files.exists(journalPath)) {
+            return;
+        }
+
+        Path legacyPath = Paths.get(LEGACY_TRANSACTIONS_FILE);
+        if (!Files.exists(legacyPath)) {
+            return;
+        }
+
+        List<Transaction> transactions;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(legacyPath.toFile()))) {
+            transactions = readSerializedList(in, "transactions");
+        }
+
+        System.out.println("Converting " + legacyPath + " (" + transactions.size()
+                + " transactions) to the new file format...");
+        Path temp = Paths.get(journalPath + ".tmp");
+        Files.deleteIfExists(temp);
+        try (TransactionJournal journal = new TransactionJournal(temp)) {
+            journal.rewrite(transactions);
+            journal.force();
+        }
+        Files.move(temp, journalPath, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(legacyPath, Paths.get(LEGACY_TRANSACTIONS_FILE + ".bak"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> readSerializedList(InputStream in, String what) throws IOException,
+            InventoryException {
+        try {
+            return (List<T>) new ObjectInputStream(in).readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new InventoryException("Invalid data format in " + what + " file",
+                    e, InventoryException.ErrorCode.DATA_FORMAT_ERROR);
+        }
+    }
+}
\ No newline at end of file
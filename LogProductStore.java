@@ -0,0 +1,391 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// This class keeps the product catalog as a snapshot file plus a product log
+// Every change goes into the log (see ProductLog), and a checkpoint writes the
+// catalog out and deletes the log files it covers.
+// A full checkpoint writes every product into a new snapshot (the base). A
+// delta checkpoint only writes the products changed since the last checkpoint,
+// and the ids of removed ones, into a delta file next to the base. Loading
+// starts from the base and applies the deltas on top in order. Every so often
+// we write a full base again, so the deltas don't pile up.
+public class LogProductStore implements ProductStore {
+    private static final String PRODUCTS_FILE = "products.dat";
+    // Product changes since the last snapshot go into numbered log files
+    private static final String PRODUCT_LOG_PREFIX = "products.wal.";
+    // Delta checkpoints since the base go into files numbered with the log
+    // generation they include
+    private static final String DELTA_PREFIX = "products.delta.";
+    // Snapshots start with this, followed by the version, the product log
+    // generation they include and the number of products
+    private static final int SNAPSHOT_MAGIC = 0x50524442; // "PRDB"
+    // Deltas have the same header with this instead, and the removed ids after
+    // the products
+    private static final int DELTA_MAGIC = 0x50524444; // "PRDD"
+    private static final int SNAPSHOT_HEADER_SIZE = 20;
+
+    // Write a full base again after this many deltas, or once the deltas add
+    // up to more than this share of the base's size
+    private static final int MAX_DELTAS = 8;
+    private static final double MAX_DELTA_SHARE = 0.5;
+
+    // The product log file we add changes to, and whether anything was added to
+    // it since the last snapshot
+    private ProductLog productLog;
+    private volatile boolean changesSinceCheckpoint;
+    // Only one snapshot may be written at a time
+    private final Object snapshotLock = new Object();
+    // Set when a checkpoint fails: the products it left out may no longer be
+    // marked as changed, so only a full checkpoint is safe after that
+    private volatile boolean fullCheckpointNeeded;
+
+    // The snapshot file, for LegacyDataMigrator
+    public static Path snapshotPath() {
+        return Paths.get(PRODUCTS_FILE);
+    }
+
+    // True if there is a snapshot or product log on disk at all
+    public static boolean exists() throws IOException {
+        return new File(PRODUCTS_FILE).exists() || !productLogGenerations().isEmpty();
+    }
+
+    // We start from the last snapshot, apply the deltas written after it and
+    // then replay the product log files written after those, so every change
+    // that made it into the log is back
+    @Override
+    public List<Product> load() throws IOException, InventoryException {
+        long snapshotGeneration = readSnapshotGeneration();
+        Map<String, Product> products = new LinkedHashMap<>();
+        for (Product product : readProductFile(Paths.get(PRODUCTS_FILE), SNAPSHOT_MAGIC, null)) {
+            products.put(product.getId(), product);
+        }
+
+        long checkpointGeneration = snapshotGeneration;
+        for (long generation : generations(DELTA_PREFIX)) {
+            if (generation <= snapshotGeneration) {
+                continue; // Left over from before the base was written
+            }
+            List<String> removedIds = new ArrayList<>();
+            for (Product product : readProductFile(deltaPath(generation), DELTA_MAGIC, removedIds)) {
+                products.put(product.getId(), product);
+            }
+            for (String id : removedIds) {
+                products.remove(id);
+            }
+            checkpointGeneration = generation;
+        }
+
+        for (long generation : productLogGenerations()) {
+            if (generation <= checkpointGeneration) {
+                continue; // Already part of the snapshot or a delta
+            }
+            // The log we're writing to is still open, so use that one
+            if (productLog != null && productLog.getGeneration() == generation) {
+                productLog.replay(products);
+                continue;
+            }
+            try (ProductLog log = new ProductLog(productLogPath(generation), generation)) {
+                if (!log.isEmpty()) {
+                    changesSinceCheckpoint = true;
+                }
+                log.replay(products);
+            }
+        }
+        return new ArrayList<>(products.values());
+    }
+
+    @Override
+    public void apply(List<ProductChange> changes) throws IOException {
+        currentProductLog().append(changes);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        ProductLog log;
+        synchronized (this) {
+            log = productLog;
+        }
+        if (log != null) {
+            log.force();
+        }
+    }
+
+    @Override
+    public boolean hasChanges() {
+        return changesSinceCheckpoint;
+    }
+
+    // A full checkpoint is due when there's no base yet, a checkpoint failed, or
+    // the deltas have grown too many or too big
+    @Override
+    public boolean needsFullCheckpoint() {
+        if (fullCheckpointNeeded || !Files.exists(Paths.get(PRODUCTS_FILE))) {
+            return true;
+        }
+        try {
+            List<Long> deltas = generations(DELTA_PREFIX);
+            if (deltas.size() >= MAX_DELTAS) {
+                return true;
+            }
+            long deltaBytes = 0;
+            for (long generation : deltas) {
+                deltaBytes += Files.size(deltaPath(generation));
+            }
+            return deltaBytes > Files.size(Paths.get(PRODUCTS_FILE)) * MAX_DELTA_SHARE;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    // Switch to a new product log file and return the generation of the one
+    // before it. The copy of the products the caller took matches exactly the
+    // log files up to that generation.
+    @Override
+    public synchronized long startCheckpoint() throws IOException {
+        long generation = nextProductLogGeneration();
+        ProductLog next = new ProductLog(productLogPath(generation), generation);
+        if (productLog != null) {
+            productLog.close();
+        }
+        productLog = next;
+        changesSinceCheckpoint = false;
+        return generation - 1;
+    }
+
+    // Save the products as the new snapshot and delete the delta and log files
+    // it makes unnecessary
+    @Override
+    public void finishCheckpoint(List<Product> products, long generation) throws IOException {
+        synchronized (snapshotLock) {
+            try {
+                writeProductFile(Paths.get(PRODUCTS_FILE), SNAPSHOT_MAGIC, generation, products, null);
+            } catch (IOException e) {
+                fullCheckpointNeeded = true;
+                throw e;
+            }
+            fullCheckpointNeeded = false;
+            for (long oldGeneration : generations(DELTA_PREFIX)) {
+                if (oldGeneration <= generation) {
+                    Files.deleteIfExists(deltaPath(oldGeneration));
+                }
+            }
+            deleteProductLogs(generation);
+        }
+    }
+
+    // Save the changed products and removed ids as a new delta and delete the
+    // log files it makes unnecessary
+    @Override
+    public void finishDeltaCheckpoint(List<Product> changed, List<String> removedIds, long generation)
+            throws IOException {
+        synchronized (snapshotLock) {
+            try {
+                writeProductFile(deltaPath(generation), DELTA_MAGIC, generation, changed, removedIds);
+            } catch (IOException e) {
+                fullCheckpointNeeded = true;
+                throw e;
+            }
+            deleteProductLogs(generation);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (productLog != null) {
+            productLog.close();
+            productLog = null;
+        }
+    }
+
+    // The product log we're writing to right now, opened the first time we need it
+    private synchronized ProductLog currentProductLog() throws IOException {
+        if (productLog == null) {
+            long generation = nextProductLogGeneration();
+            productLog = new ProductLog(productLogPath(generation), generation);
+        }
+        changesSinceCheckpoint = true;
+        return productLog;
+    }
+
+    // A new log file always gets a higher number than anything already on disk,
+    // including the generation the snapshot and deltas say they cover
+    private long nextProductLogGeneration() throws IOException {
+        long highest = readSnapshotGeneration();
+        for (long generation : productLogGenerations()) {
+            highest = Math.max(highest, generation);
+        }
+        for (long generation : generations(DELTA_PREFIX)) {
+            highest = Math.max(highest, generation);
+        }
+        if (productLog != null) {
+            highest = Math.max(highest, productLog.getGeneration());
+        }
+        return highest + 1;
+    }
+
+    private void deleteProductLogs(long upToGeneration) throws IOException {
+        for (long oldGeneration : productLogGenerations()) {
+            if (oldGeneration <= upToGeneration) {
+                Files.deleteIfExists(productLogPath(oldGeneration));
+            }
+        }
+    }
+
+    // The generation numbers of all product log files on disk, lowest first
+    private static List<Long> productLogGenerations() throws IOException {
+        return generations(PRODUCT_LOG_PREFIX);
+    }
+
+    // The numbers of all files on disk whose names are the prefix and a number,
+    // lowest first
+    private static List<Long> generations(String prefix) throws IOException {
+        List<Long> generations = new ArrayList<>();
+        File[] files = new File(".").listFiles();
+        if (files == null) {
+            throw new IOException("Could not list the data directory");
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix)) {
+                try {
+                    generations.add(Long.parseLong(name.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of our log files
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private static Path productLogPath(long generation) {
+        return Paths.get(PRODUCT_LOG_PREFIX + generation);
+    }
+
+    private static Path deltaPath(long generation) {
+        return Paths.get(DELTA_PREFIX + generation);
+    }
+
+    // Write a snapshot or delta to a temporary file first and then swap it in,
+    // so a crash halfway through never leaves us with a broken products file
+    // The temporary file is synced before the swap and the directory after it:
+    // the log files this file replaces get deleted next, so it has to be safely
+    // on disk by then whatever the durability mode is.
+    // Layout: magic, version, log generation, product count, the products
+    // (see BinaryCodec), for a delta the removed ids, and a checksum of
+    // everything before it
+    private void writeProductFile(Path target, int magic, long generation, List<Product> products,
+            List<String> removedIds) throws IOException {
+        Path temp = Paths.get(target + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc)));
+            out.writeInt(magic);
+            out.writeInt(BinaryCodec.VERSION);
+            out.writeLong(generation);
+            out.writeInt(products.size());
+
+            BinaryCodec.Writer writer = new BinaryCodec.Writer(64 * 1024);
+            for (Product product : products) {
+                BinaryCodec.writeProduct(writer, product);
+                if (writer.size() >= 60 * 1024) {
+                    out.write(writer.toByteArray());
+                    writer = new BinaryCodec.Writer(64 * 1024);
+                }
+            }
+            if (removedIds != null) {
+                writer.writeUnsignedLong(removedIds.size());
+                for (String id : removedIds) {
+                    writer.writeId(id);
+                    if (writer.size() >= 60 * 1024) {
+                        out.write(writer.toByteArray());
+                        writer = new BinaryCodec.Writer(64 * 1024);
+                    }
+                }
+            }
+            out.write(writer.toByteArray());
+            out.flush();
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        RecordLog.syncDirectory(target);
+    }
+
+    // Read the products in a snapshot or delta, and for a delta the removed ids
+    private List<Product> readProductFile(Path path, int magic, List<String> removedIds)
+            throws IOException, InventoryException {
+        if (!Files.exists(path)) {
+            return new ArrayList<>(); // Return empty list if no file exists
+        }
+
+        byte[] bytes = Files.readAllBytes(path);
+        if (bytes.length < SNAPSHOT_HEADER_SIZE + 4 || ByteBuffer.wrap(bytes).getInt() != magic) {
+            throw new InventoryException("Invalid data format in products file",
+                    InventoryException.ErrorCode.DATA_FORMAT_ERROR);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt()) {
+            throw new InventoryException("Products file is corrupt (checksum mismatch)",
+                    InventoryException.ErrorCode.DATA_FORMAT_ERROR);
+        }
+
+        ByteBuffer header = ByteBuffer.wrap(bytes, 4, SNAPSHOT_HEADER_SIZE - 4);
+        int version = header.getInt();
+        if (version != BinaryCodec.VERSION) {
+            throw new InventoryException("Unsupported products file version " + version,
+                    InventoryException.ErrorCode.DATA_FORMAT_ERROR);
+        }
+        header.getLong(); // generation, see readSnapshotGeneration()
+        int count = header.getInt();
+
+        List<Product> products = new ArrayList<>(count);
+        BinaryCodec.Reader in = new BinaryCodec.Reader(bytes, SNAPSHOT_HEADER_SIZE,
+                bytes.length - SNAPSHOT_HEADER_SIZE - 4);
+        for (int i = 0; i < count; i++) {
+            products.add(BinaryCodec.readProduct(in));
+        }
+        if (removedIds != null) {
+            long removed = in.readUnsignedLong();
+            for (long i = 0; i < removed; i++) {
+                removedIds.add(in.readId());
+            }
+        }
+        return products;
+    }
+
+    // Read which product log generation the snapshot includes, without reading
+    // the products themselves
+    private long readSnapshotGeneration() throws IOException {
+        File file = new File(PRODUCTS_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Invalid data format in products file");
+            }
+            in.readInt();
+            return in.readLong();
+        }
+    }
+}
\ No newline at end of file
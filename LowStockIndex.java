@@ -0,0 +1,92 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+// This class keeps the products in order of how close they are to running out
+// A product's headroom is its quantity minus its minimum stock level; it's low
+// on stock when the headroom is 0 or less. The products are kept sorted by
+// headroom, so the low stock ones are always at the front and listing them only
+// touches those.
+// Call update() after a product's quantity or minimum stock level changes. It
+// says whether the product just became low on stock or stopped being low.
+public class LowStockIndex {
+    // What update() saw happen
+    public enum Transition {
+        NONE, // Still low, or still fine
+        BECAME_LOW, // Wasn't low on stock before, is now
+        RESTORED // Was low on stock before, isn't now
+    }
+
+    // One product's place in the order
+    private static class Entry implements Comparable<Entry> {
+        final long headroom;
+        final String productId;
+
+        Entry(long headroom, String productId) {
+            this.headroom = headroom;
+            this.productId = productId;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int byHeadroom = Long.compare(headroom, other.headroom);
+            return byHeadroom != 0 ? byHeadroom : productId.compareTo(other.productId);
+        }
+    }
+
+    private final TreeSet<Entry> order = new TreeSet<>();
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    // Put a product in the index, or move it to its new place
+    public synchronized Transition update(Product product) {
+        Entry entry = new Entry((long) product.getQuantity() - product.getMinStockLevel(), product.getId());
+        Entry old = entries.put(product.getId(), entry);
+        if (old != null) {
+            order.remove(old);
+        }
+        order.add(entry);
+
+        boolean wasLow = old != null && old.headroom <= 0;
+        boolean isLow = entry.headroom <= 0;
+        if (isLow && !wasLow) {
+            return Transition.BECAME_LOW;
+        } else if (wasLow && !isLow) {
+            return Transition.RESTORED;
+        }
+        return Transition.NONE;
+    }
+
+    // Take a product out of the index
+    public synchronized void remove(Product product) {
+        Entry old = entries.remove(product.getId());
+        if (old != null) {
+            order.remove(old);
+        }
+    }
+
+    // The ids of the products that are low on stock, lowest headroom first
+    public synchronized List<String> lowStockIds() {
+        List<String> ids = new ArrayList<>();
+        for (Entry entry : order) {
+            if (entry.headroom > 0) {
+                break;
+            }
+            ids.add(entry.productId);
+        }
+        return ids;
+    }
+
+    // The ids of the products with the least headroom, low on stock or not
+    public synchronized List<String> mostCriticalIds(int limit) {
+        List<String> ids = new ArrayList<>();
+        for (Entry entry : order) {
+            if (ids.size() >= limit) {
+                break;
+            }
+            ids.add(entry.productId);
+        }
+        return ids;
+    }
+}
\ No newline at end of file
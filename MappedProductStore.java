@@ -0,0 +1,467 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// This class keeps the product catalog in a memory-mapped file of fixed-size
+// slots, one per product
+// The numbers (quantity, minimum stock level, price) sit right in the slot, so
+// a stock change is just writing 4 bytes into the mapped file. The text fields
+// (id, name, category) go into a separate string file that we only ever add to,
+// and the slot remembers where its strings are. The strings are written with
+// BinaryCodec and synced before any slot points at them (unless the durability
+// mode is BUFFERED).
+// Changing a product's name or category leaves its old strings behind, so once
+// most of the string file is old strings, a checkpoint copies the ones still
+// used into a new string file and points the slots there (see
+// compactStrings()).
+//
+// Slot layout (32 bytes):
+//   0  int    state (0 = free, 1 = in use)
+//   4  int    quantity
+//   8  int    minStockLevel
+//   12 int    length of the strings
+//   16 double price
+//   24 long   where the strings start in the string file
+public class MappedProductStore implements ProductStore {
+    private static final String SLOTS_FILE = "products.slots";
+    private static final String STRINGS_FILE = "products.strings";
+
+    private static final int MAGIC = 0x50524D53; // "PRMS"
+    // Version 1 wrote the strings with DataOutputStream. Version 2 always had
+    // the one string file, and 0 where version 3 has the string file numbers.
+    private static final int VERSION = 3;
+    // Header: magic, version, capacity, number of slots ever used, the number
+    // of the string file in use, and of the one a compaction is switching to
+    // (0 if none)
+    private static final int HEADER_SIZE = 32;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int USED_OFFSET = 12;
+    private static final int STRINGS_GENERATION_OFFSET = 16;
+    private static final int NEXT_STRINGS_GENERATION_OFFSET = 20;
+
+    private static final int SLOT_SIZE = 32;
+    private static final int STATE = 0;
+    private static final int QUANTITY = 4;
+    private static final int MIN_STOCK_LEVEL = 8;
+    private static final int STRINGS_LENGTH = 12;
+    private static final int PRICE = 16;
+    private static final int STRINGS_OFFSET = 24;
+
+    private static final int FREE = 0;
+    private static final int IN_USE = 1;
+    private static final int INITIAL_CAPACITY = 1024;
+    // A checkpoint compacts the string file once it's at least this big and
+    // less than half of it is strings the slots still use
+    private static final long MIN_COMPACT_BYTES = 64 * 1024;
+
+    private final FileChannel slotsChannel;
+    // Replaced by a new string file when the strings are compacted
+    private FileChannel stringsChannel;
+    private int stringsGeneration;
+    private MappedByteBuffer slots;
+    private int capacity;
+    private int usedSlots;
+    // Whether new strings are synced before a slot points at them. Without it
+    // (BUFFERED) a crash of the whole system, not just of the program, can
+    // leave a slot pointing at strings that never reached the disk.
+    private final boolean syncStrings;
+
+    // Which slot each product lives in, and slots we can hand out again
+    private final Map<String, Integer> slotById = new HashMap<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private volatile boolean changesSinceCheckpoint;
+
+    // Open (or create) the slot and string files and map the slots into memory
+    public MappedProductStore(InventoryFileManager.DurabilityMode durability) throws IOException {
+        this.syncStrings = durability != InventoryFileManager.DurabilityMode.BUFFERED;
+        boolean created = !new File(SLOTS_FILE).exists();
+        this.slotsChannel = FileChannel.open(Paths.get(SLOTS_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            if (created || slotsChannel.size() < HEADER_SIZE) {
+                map(INITIAL_CAPACITY);
+                slots.putInt(0, MAGIC);
+                slots.putInt(4, VERSION);
+                slots.putInt(CAPACITY_OFFSET, INITIAL_CAPACITY);
+                slots.putInt(USED_OFFSET, 0);
+                capacity = INITIAL_CAPACITY;
+                usedSlots = 0;
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                slotsChannel.read(header, 0);
+                header.flip();
+                if (header.getInt() != MAGIC) {
+                    throw new IOException(SLOTS_FILE + " is not a product slot file");
+                }
+                int version = header.getInt();
+                if (version != VERSION && version != 2) {
+                    throw new IOException("Unsupported product slot file version " + version);
+                }
+                capacity = header.getInt();
+                usedSlots = header.getInt();
+                map(capacity);
+                slots.putInt(4, VERSION);
+            }
+
+            // A compaction that stopped after the compacted file was complete
+            // is finished now; the slots it hadn't got to yet are pointed at
+            // their strings the same way
+            stringsGeneration = slots.getInt(STRINGS_GENERATION_OFFSET);
+            int nextGeneration = slots.getInt(NEXT_STRINGS_GENERATION_OFFSET);
+            if (nextGeneration != 0) {
+                pointSlotsAtCompactedStrings();
+                slots.force();
+                slots.putInt(STRINGS_GENERATION_OFFSET, nextGeneration);
+                slots.putInt(NEXT_STRINGS_GENERATION_OFFSET, 0);
+                slots.force();
+                stringsGeneration = nextGeneration;
+            }
+            this.stringsChannel = FileChannel.open(stringsPath(stringsGeneration), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            deleteOtherStringFiles();
+        } catch (IOException e) {
+            slotsChannel.close();
+            if (stringsChannel != null) {
+                stringsChannel.close();
+            }
+            throw e;
+        }
+    }
+
+    // True if there is a slot file on disk already
+    public static boolean exists() {
+        return new File(SLOTS_FILE).exists();
+    }
+
+    // Read every product out of the slots
+    // Nothing gets deserialized: we just walk the mapped slots and look up the
+    // strings for each one
+    @Override
+    public synchronized List<Product> load() throws IOException {
+        List<Product> products = new ArrayList<>();
+        slotById.clear();
+        freeSlots.clear();
+
+        for (int slot = 0; slot < usedSlots; slot++) {
+            int base = slotOffset(slot);
+            if (slots.getInt(base + STATE) != IN_USE) {
+                freeSlots.add(slot);
+                continue;
+            }
+            Product product = readProduct(slots.getLong(base + STRINGS_OFFSET), slots.getInt(base + STRINGS_LENGTH),
+                    slots.getDouble(base + PRICE), slots.getInt(base + QUANTITY), slots.getInt(base + MIN_STOCK_LEVEL));
+            slotById.put(product.getId(), slot);
+            products.add(product);
+        }
+        return products;
+    }
+
+    @Override
+    public synchronized void apply(List<ProductChange> changes) throws IOException {
+        // Add the strings of every new or updated product first, and make sure
+        // they're on disk before any slot points at them. The slots are mapped,
+        // so the system may write them out at any moment, even without a sync.
+        long[] stringOffsets = new long[changes.size()];
+        int[] stringLengths = new int[changes.size()];
+        boolean wroteStrings = false;
+        for (int i = 0; i < changes.size(); i++) {
+            ProductChange change = changes.get(i);
+            if (change.getKind() == ProductChange.Kind.ADDED || change.getKind() == ProductChange.Kind.UPDATED) {
+                byte[] strings = encodeStrings(change);
+                stringOffsets[i] = appendStrings(strings);
+                stringLengths[i] = strings.length;
+                wroteStrings = true;
+            }
+        }
+        if (wroteStrings && syncStrings) {
+            stringsChannel.force(false);
+        }
+
+        for (int i = 0; i < changes.size(); i++) {
+            ProductChange change = changes.get(i);
+            switch (change.getKind()) {
+                case ADDED:
+                    productAdded(change, stringOffsets[i], stringLengths[i]);
+                    break;
+                case UPDATED:
+                    productUpdated(change, stringOffsets[i], stringLengths[i]);
+                    break;
+                case STOCK_CHANGED:
+                    stockChanged(change);
+                    break;
+                case REMOVED:
+                    productRemoved(change.getProductId());
+                    break;
+            }
+        }
+        changesSinceCheckpoint = true;
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        stringsChannel.force(false);
+        slots.force();
+    }
+
+    private void productAdded(ProductChange product, long stringsOffset, int stringsLength) throws IOException {
+        int slot = freeSlots.isEmpty() ? newSlot() : freeSlots.poll();
+        int base = slotOffset(slot);
+        slots.putLong(base + STRINGS_OFFSET, stringsOffset);
+        slots.putInt(base + STRINGS_LENGTH, stringsLength);
+        slots.putInt(base + QUANTITY, product.getQuantity());
+        slots.putInt(base + MIN_STOCK_LEVEL, product.getMinStockLevel());
+        slots.putDouble(base + PRICE, product.getPrice());
+        // Only mark the slot as used once everything else is in place
+        slots.putInt(base + STATE, IN_USE);
+        slotById.put(product.getProductId(), slot);
+    }
+
+    private void productUpdated(ProductChange product, long stringsOffset, int stringsLength) throws IOException {
+        int base = slotOffset(slotOf(product.getProductId()));
+        slots.putLong(base + STRINGS_OFFSET, stringsOffset);
+        slots.putInt(base + STRINGS_LENGTH, stringsLength);
+        slots.putInt(base + MIN_STOCK_LEVEL, product.getMinStockLevel());
+        slots.putDouble(base + PRICE, product.getPrice());
+    }
+
+    // The whole point of this store: a stock change is one write into the slot
+    private void stockChanged(ProductChange product) throws IOException {
+        slots.putInt(slotOffset(slotOf(product.getProductId())) + QUANTITY, product.getQuantity());
+    }
+
+    private void productRemoved(String productId) throws IOException {
+        int slot = slotOf(productId);
+        slots.putInt(slotOffset(slot) + STATE, FREE);
+        slotById.remove(productId);
+        freeSlots.add(slot);
+    }
+
+    @Override
+    public boolean hasChanges() {
+        return changesSinceCheckpoint;
+    }
+
+    // Every change is already in the mapped file, so there's nothing to copy
+    @Override
+    public long startCheckpoint() {
+        changesSinceCheckpoint = false;
+        return 0;
+    }
+
+    // Every product already has its own slot, so a copy of all of them is never
+    // needed
+    @Override
+    public boolean needsFullCheckpoint() {
+        return false;
+    }
+
+    // A checkpoint here just makes sure the changed pages are on disk, and
+    // compacts the string file if it's mostly old strings
+    @Override
+    public void finishCheckpoint(List<Product> products, long checkpoint) throws IOException {
+        compactStringsIfNeeded();
+        sync();
+    }
+
+    @Override
+    public void finishDeltaCheckpoint(List<Product> changed, List<String> removedIds, long checkpoint)
+            throws IOException {
+        compactStringsIfNeeded();
+        sync();
+    }
+
+    private synchronized void compactStringsIfNeeded() throws IOException {
+        long size = stringsChannel.size();
+        if (size >= MIN_COMPACT_BYTES && usedStringBytes() * 2 < size) {
+            compactStrings();
+        }
+    }
+
+    // How much of the string file the slots in use point at
+    private long usedStringBytes() {
+        long total = 0;
+        for (int slot = 0; slot < usedSlots; slot++) {
+            int base = slotOffset(slot);
+            if (slots.getInt(base + STATE) == IN_USE) {
+                total += slots.getInt(base + STRINGS_LENGTH);
+            }
+        }
+        return total;
+    }
+
+    // Copy the strings the slots use into the next string file, one after
+    // another in slot order, and point the slots there.
+    // The slots are mapped, so any of them may reach the disk at any moment.
+    // That's why the header first says which file we're switching to, and is
+    // synced, before any slot changes: if we stop half way, opening the store
+    // finds that and finishes the job, which it can do because where each
+    // slot's strings go only depends on the lengths and order of the slots.
+    private void compactStrings() throws IOException {
+        int generation = stringsGeneration + 1;
+        Path path = stringsPath(generation);
+        FileChannel compacted = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long position = 0;
+            for (int slot = 0; slot < usedSlots; slot++) {
+                int base = slotOffset(slot);
+                if (slots.getInt(base + STATE) == IN_USE) {
+                    ByteBuffer strings = readStrings(slots.getLong(base + STRINGS_OFFSET),
+                            slots.getInt(base + STRINGS_LENGTH));
+                    strings.flip();
+                    while (strings.hasRemaining()) {
+                        position += compacted.write(strings, position);
+                    }
+                }
+            }
+            compacted.force(false);
+            slots.putInt(NEXT_STRINGS_GENERATION_OFFSET, generation);
+            slots.force();
+        } catch (IOException e) {
+            slots.putInt(NEXT_STRINGS_GENERATION_OFFSET, 0);
+            compacted.close();
+            Files.deleteIfExists(path);
+            throw e;
+        }
+
+        FileChannel old = stringsChannel;
+        int oldGeneration = stringsGeneration;
+        pointSlotsAtCompactedStrings();
+        stringsChannel = compacted;
+        stringsGeneration = generation;
+        try {
+            slots.force();
+        } finally {
+            slots.putInt(STRINGS_GENERATION_OFFSET, generation);
+            slots.putInt(NEXT_STRINGS_GENERATION_OFFSET, 0);
+        }
+        slots.force();
+        old.close();
+        Files.deleteIfExists(stringsPath(oldGeneration));
+    }
+
+    // Point every slot in use at its strings in a compacted string file, where
+    // they follow one another in slot order
+    private void pointSlotsAtCompactedStrings() {
+        long offset = 0;
+        for (int slot = 0; slot < usedSlots; slot++) {
+            int base = slotOffset(slot);
+            if (slots.getInt(base + STATE) == IN_USE) {
+                slots.putLong(base + STRINGS_OFFSET, offset);
+                offset += slots.getInt(base + STRINGS_LENGTH);
+            }
+        }
+    }
+
+    // The string file with this number; the first one has no number, as in
+    // version 2
+    private static Path stringsPath(int generation) {
+        return Paths.get(generation == 0 ? STRINGS_FILE : STRINGS_FILE + "." + generation);
+    }
+
+    // Delete string files left behind by a compaction: the old file if we
+    // stopped before deleting it, or a half written new one
+    private void deleteOtherStringFiles() throws IOException {
+        Path current = stringsPath(stringsGeneration);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get("."), STRINGS_FILE + "*")) {
+            for (Path file : files) {
+                // Nothing but the number (or no number) may follow the name
+                String number = file.getFileName().toString().substring(STRINGS_FILE.length());
+                boolean stringFile = number.isEmpty() || number.matches("\\.[0-9]+");
+                if (stringFile && !file.getFileName().equals(current.getFileName())) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        slots.force();
+        stringsChannel.close();
+        slotsChannel.close();
+    }
+
+    private int slotOf(String productId) throws IOException {
+        Integer slot = slotById.get(productId);
+        if (slot == null) {
+            throw new IOException("No slot for product " + productId);
+        }
+        return slot;
+    }
+
+    // Hand out the next never-used slot, making the file bigger if it's full
+    private int newSlot() throws IOException {
+        if (usedSlots == capacity) {
+            map(capacity * 2);
+            capacity = capacity * 2;
+            slots.putInt(CAPACITY_OFFSET, capacity);
+        }
+        int slot = usedSlots++;
+        slots.putInt(USED_OFFSET, usedSlots);
+        return slot;
+    }
+
+    private void map(int slotCount) throws IOException {
+        slots = slotsChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    // The product's id, name and category, as they go into the string file
+    private static byte[] encodeStrings(ProductChange product) {
+        BinaryCodec.Writer out = new BinaryCodec.Writer(96);
+        product.writeProductId(out);
+        out.writeString(product.getName());
+        out.writeString(product.getCategory());
+        return out.toByteArray();
+    }
+
+    // Add strings to the end of the string file and return where they start.
+    // Old strings are simply left behind.
+    private long appendStrings(byte[] strings) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(strings);
+        long offset = stringsChannel.size();
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += stringsChannel.write(buffer, position);
+        }
+        return offset;
+    }
+
+    // Read back the id, name and category written by encodeStrings(), and make
+    // the product with them and the numbers from its slot
+    private Product readProduct(long offset, int length, double price, int quantity, int minStockLevel)
+            throws IOException {
+        BinaryCodec.Reader in = new BinaryCodec.Reader(readStrings(offset, length).array());
+        return new Product(in.readIdKey(), in.readString(), in.readString(), price, quantity, minStockLevel);
+    }
+
+    // Read one slot's strings out of the string file
+    private ByteBuffer readStrings(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (stringsChannel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException(stringsPath(stringsGeneration) + " is shorter than " + SLOTS_FILE
+                        + " expects");
+            }
+        }
+        return buffer;
+    }
+}
\ No newline at end of file
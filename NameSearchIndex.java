@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// This class finds products whose name contains some text, without checking
+// every product in the catalog
+// Every name is cut into trigrams: all the 3-letter pieces of it ("drill" has
+// "dri", "ril" and "ill"). A name can only contain the search text if it has
+// every trigram of the search text, so we take the products that have the
+// rarest one, keep those that have the others too, and then check each of them
+// for real. Like the old search it ignores upper and lower case.
+// When a product is renamed, take it out with remove() before the change and
+// put it back with add() after.
+public class NameSearchIndex {
+    private static final int GRAM_LENGTH = 3;
+
+    // Trigram -> ids of the products whose name has it
+    private final Map<String, Set<String>> productsByGram = new HashMap<>();
+    // Id -> lower case name, to check the candidates
+    private final Map<String, String> names = new HashMap<>();
+    // Ids of the products whose name is too short to have a trigram
+    private final Set<String> shortNames = new HashSet<>();
+
+    // Put a product in the index
+    public synchronized void add(Product product) {
+        String name = product.getName().toLowerCase();
+        names.put(product.getId(), name);
+        if (name.length() < GRAM_LENGTH) {
+            shortNames.add(product.getId());
+        }
+        for (String gram : grams(name)) {
+            productsByGram.computeIfAbsent(gram, g -> new HashSet<>()).add(product.getId());
+        }
+    }
+
+    // Take a product out of the index
+    public synchronized void remove(Product product) {
+        String name = names.remove(product.getId());
+        if (name == null) {
+            return;
+        }
+        shortNames.remove(product.getId());
+        for (String gram : grams(name)) {
+            Set<String> ids = productsByGram.get(gram);
+            if (ids != null) {
+                ids.remove(product.getId());
+                if (ids.isEmpty()) {
+                    productsByGram.remove(gram);
+                }
+            }
+        }
+    }
+
+    // The ids of the products whose name contains the text
+    public synchronized List<String> search(String text) {
+        String query = text.toLowerCase();
+        List<String> result = new ArrayList<>();
+
+        // Every name contains nothing
+        if (query.isEmpty()) {
+            result.addAll(names.keySet());
+            return result;
+        }
+
+        // Text shorter than a trigram is in a name exactly when it's in one of
+        // the name's trigrams (or the name is shorter than a trigram itself), so
+        // go through the different trigrams rather than all the names
+        if (query.length() < GRAM_LENGTH) {
+            Set<String> found = new HashSet<>();
+            for (Map.Entry<String, Set<String>> entry : productsByGram.entrySet()) {
+                if (entry.getKey().contains(query)) {
+                    found.addAll(entry.getValue());
+                }
+            }
+            for (String id : shortNames) {
+                if (names.get(id).contains(query)) {
+                    found.add(id);
+                }
+            }
+            result.addAll(found);
+            return result;
+        }
+
+        // Find the query's trigrams, rarest first; if one isn't in any name,
+        // nothing can match
+        List<Set<String>> postings = new ArrayList<>();
+        for (String gram : grams(query)) {
+            Set<String> ids = productsByGram.get(gram);
+            if (ids == null) {
+                return result;
+            }
+            postings.add(ids);
+        }
+        postings.sort((a, b) -> Integer.compare(a.size(), b.size()));
+
+        // Keep the candidates that have every trigram, then check the name itself
+        // (having all the pieces doesn't mean they're in the right order)
+        for (String id : postings.get(0)) {
+            boolean candidate = true;
+            for (int i = 1; i < postings.size() && candidate; i++) {
+                candidate = postings.get(i).contains(id);
+            }
+            if (candidate && names.get(id).contains(query)) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    // The different trigrams in a piece of text
+    private static Set<String> grams(String text) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+            grams.add(text.substring(i, i + GRAM_LENGTH));
+        }
+        return grams;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,40 @@
+import java.util.UUID;
+
+// This class helps keep ids small in memory
+// The ids we make ourselves are UUIDs like "3f2a...-...". As a string that's 36
+// characters (about 90 bytes with the String around it); as a UUID it's just
+// two longs. Products and transactions keep their ids as two longs when they
+// can and turn them back into the same string when asked. Ids that aren't
+// UUIDs written the standard way are kept as they are.
+public final class PackedId {
+    private PackedId() {
+    }
+
+    // The id as a UUID, or null if it can't be turned back into exactly the
+    // same string
+    public static UUID parse(String id) {
+        if (id == null || id.length() != 36) {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(id);
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // The id string for two longs that came from parse()
+    public static String format(long high, long low) {
+        return new UUID(high, low).toString();
+    }
+
+    // A map key for the id: its UUID if it has one, otherwise the text. Two ids
+    // get equal keys exactly when the strings are equal, and a key can be made
+    // from the two longs without formatting them (see
+    // Transaction.getProductKey()).
+    public static Object key(String id) {
+        UUID uuid = parse(id);
+        return uuid != null ? uuid : id;
+    }
+}
\ No newline at end of file
@@ -1,32 +1,120 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.UUID;
 
 // This class represents a product in our inventory system
 // Serializable means we can save it to a file
 public class Product implements Serializable {
     private static final long serialVersionUID = 1L; // Needed for saving to file
 
+    // Old product files saved these fields with Java serialization, so that's
+    // still what gets saved and read back (see writeObject() and readObject())
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("id", String.class),
+            new ObjectStreamField("name", String.class),
+            new ObjectStreamField("category", String.class),
+            new ObjectStreamField("price", double.class),
+            new ObjectStreamField("quantity", int.class),
+            new ObjectStreamField("minStockLevel", int.class)
+    };
+
     // These are all the details we store about a product
-    public String id; // Unique identifier for the product
-    public String name; // Name of the product
-    public String category; // What type of product it is
-    public double price; // How much it costs
-    public int quantity; // How many we have in stock
-    public int minStockLevel; // When to warn that we're running low
+    // The id is kept as text, since the catalog's maps are keyed by the same
+    // string anyway, and also as two longs when it's a UUID (see PackedId), so
+    // it can be written out without being parsed again. The category is kept
+    // as its code in StringDictionary.SHARED; getCategory() gives back the
+    // same string.
+    private String idText; // Unique identifier for the product
+    private long idHigh; // Only if idPacked
+    private long idLow;
+    private boolean idPacked;
+    private String name; // Name of the product
+    private int categoryCode; // What type of product it is
+
+    // The price, quantity and minimum stock level are kept in one of two
+    // places. Normally the product has its own Numbers. If the catalog keeps
+    // its numbers in a ProductTable, they're in a slot there instead, and the
+    // product only has a TableSlot saying which one; numbers is then null.
+    private transient volatile Numbers numbers;
+    private transient volatile TableSlot tableSlot;
+
+    // A product's own numbers
+    private static class Numbers {
+        double price; // How much it costs
+        // How many we have in stock, together with where the stock change that
+        // set it is in the transaction order (see getStockState())
+        long stockState;
+        int minStockLevel; // When to warn that we're running low
+
+        Numbers(double price, long stockState, int minStockLevel) {
+            this.price = price;
+            this.stockState = stockState;
+            this.minStockLevel = minStockLevel;
+        }
+    }
+
+    // Where a product's numbers are in a ProductTable. Each move into the
+    // table makes a new one, so a reader can tell that the product moved out
+    // (and maybe back in, to another slot) while it was reading (see
+    // stillIn()).
+    private static class TableSlot {
+        final ProductTable table;
+        final int slot;
+
+        TableSlot(ProductTable table, int slot) {
+            this.table = table;
+            this.slot = slot;
+        }
+    }
+
+    // Lets us change Numbers.stockState with compare-and-set
+    private static final VarHandle STOCK_STATE;
+
+    static {
+        try {
+            STOCK_STATE = MethodHandles.lookup().findVarHandle(Numbers.class, "stockState", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // True if the product changed since the last checkpoint, so the next delta
+    // checkpoint has to include it (not saved with the product)
+    private transient volatile boolean dirty;
 
     // This is how we create a new product
     public Product(String id, String name, String category, double price, int quantity, int minStockLevel) {
-        this.id = id;
+        storeId(id);
         this.name = name;
-        this.category = category;
-        this.price = price;
-        this.quantity = quantity;
-        this.minStockLevel = minStockLevel;
+        this.categoryCode = StringDictionary.SHARED.code(category);
+        this.numbers = new Numbers(price, stockState(quantity, 0), minStockLevel);
+    }
+
+    // This is how BinaryCodec creates a product it read back, with the id as a
+    // map key (see BinaryCodec.Reader.readIdKey()), so a UUID id goes straight
+    // into the two longs and is only turned into text once
+    Product(Object idKey, String name, String category, double price, int quantity, int minStockLevel) {
+        this((String) null, name, category, price, quantity, minStockLevel);
+        if (idKey instanceof UUID) {
+            UUID uuid = (UUID) idKey;
+            idText = uuid.toString();
+            idHigh = uuid.getMostSignificantBits();
+            idLow = uuid.getLeastSignificantBits();
+            idPacked = true;
+        } else {
+            idText = (String) idKey;
+        }
     }
 
     // These methods let us get and set the product's details
     // Getters - get the values
     public String getId() {
-        return id;
+        return idText;
     }
 
     public String getName() {
@@ -34,65 +122,273 @@ public class Product implements Serializable {
     }
 
     public String getCategory() {
-        return category;
+        return StringDictionary.SHARED.lookup(categoryCode);
     }
 
+    // The number getters read the table slot if there is one, and only keep
+    // what they read if the product was still in that slot afterwards;
+    // otherwise they look again
     public double getPrice() {
-        return price;
+        while (true) {
+            TableSlot s = tableSlot;
+            if (s != null) {
+                double price = s.table.price(s.slot);
+                if (stillIn(s)) {
+                    return price;
+                }
+            } else {
+                Numbers n = numbers;
+                if (n != null) {
+                    return n.price;
+                }
+            }
+        }
     }
 
     public int getQuantity() {
-        return quantity;
+        return quantityOf(getStockState());
     }
 
     public int getMinStockLevel() {
-        return minStockLevel;
+        while (true) {
+            TableSlot s = tableSlot;
+            if (s != null) {
+                int minStockLevel = s.table.minStockLevel(s.slot);
+                if (stillIn(s)) {
+                    return minStockLevel;
+                }
+            } else {
+                Numbers n = numbers;
+                if (n != null) {
+                    return n.minStockLevel;
+                }
+            }
+        }
     }
 
     // Setters - change the values
     public void setId(String id) {
-        this.id = id;
+        storeId(id);
+        this.dirty = true;
     }
 
     public void setName(String name) {
         this.name = name;
+        this.dirty = true;
     }
 
     public void setCategory(String category) {
-        this.category = category;
+        this.categoryCode = StringDictionary.SHARED.code(category);
+        this.dirty = true;
+    }
+
+    // The number setters are synchronized with moveInto() and moveOut(), so
+    // they never write to a slot the product has already given back
+    public synchronized void setPrice(double price) {
+        TableSlot s = tableSlot;
+        if (s != null) {
+            s.table.setPrice(s.slot, price);
+        } else {
+            numbers.price = price;
+        }
+        this.dirty = true;
     }
 
-    public void setPrice(double price) {
-        this.price = price;
+    public synchronized void setQuantity(int quantity) {
+        TableSlot s = tableSlot;
+        if (s != null) {
+            s.table.setStockState(s.slot, stockState(quantity, 0));
+        } else {
+            STOCK_STATE.setVolatile(numbers, stockState(quantity, 0));
+        }
+        this.dirty = true;
+    }
+
+    // The quantity (in the high 32 bits) and the low 32 bits of the sequence
+    // number of the stock change that set it, its place in the transaction
+    // order (0 if it wasn't set by one). Keeping both in one long lets a stock
+    // change check and change them with a single compare-and-set, without a
+    // lock, so many threads can sell the same product at once (see
+    // InventoryManager.updateStock()).
+    long getStockState() {
+        while (true) {
+            TableSlot s = tableSlot;
+            if (s != null) {
+                long stockState = s.table.stockState(s.slot);
+                if (stillIn(s)) {
+                    return stockState;
+                }
+            } else {
+                Numbers n = numbers;
+                if (n != null) {
+                    return (long) STOCK_STATE.getVolatile(n);
+                }
+            }
+        }
+    }
+
+    // Change the stock state from expected to newState, but only if it's
+    // still expected; returns false if someone else changed it first.
+    // This one isn't synchronized, so stock changes don't wait for each other:
+    // the caller must keep the product from moving in or out of the table
+    // meanwhile (InventoryManager does, with the read side of its changeLock).
+    boolean compareAndSetStockState(long expected, long newState) {
+        TableSlot s = tableSlot;
+        boolean set = s != null ? s.table.compareAndSetStockState(s.slot, expected, newState)
+                : STOCK_STATE.compareAndSet(numbers, expected, newState);
+        if (set) {
+            this.dirty = true;
+        }
+        return set;
     }
 
-    public void setQuantity(int quantity) {
-        this.quantity = quantity;
+    // A stock state for a quantity, set by the stock change with this sequence
+    // number
+    static long stockState(int quantity, long sequence) {
+        return ((long) quantity << 32) | (sequence & 0xFFFFFFFFL);
     }
 
-    public void setMinStockLevel(int minStockLevel) {
-        this.minStockLevel = minStockLevel;
+    // The quantity in a stock state
+    static int quantityOf(long stockState) {
+        return (int) (stockState >> 32);
+    }
+
+    // The low 32 bits of the sequence number in a stock state
+    static int sequenceOf(long stockState) {
+        return (int) stockState;
+    }
+
+    public synchronized void setMinStockLevel(int minStockLevel) {
+        TableSlot s = tableSlot;
+        if (s != null) {
+            s.table.setMinStockLevel(s.slot, minStockLevel);
+        } else {
+            numbers.minStockLevel = minStockLevel;
+        }
+        this.dirty = true;
+    }
+
+    // Move the product's numbers into a slot in the table; from now on the
+    // getters and setters use the table, and the product's own numbers are
+    // dropped
+    public synchronized void moveInto(ProductTable productTable) {
+        Numbers n = numbers;
+        if (n != null) {
+            int slot = productTable.allocate(n.price, (long) STOCK_STATE.getVolatile(n), n.minStockLevel);
+            // Readers look at tableSlot first, so set it before dropping numbers
+            tableSlot = new TableSlot(productTable, slot);
+            numbers = null;
+        }
+    }
+
+    // Move the product's numbers back out of the table, when it leaves the
+    // catalog
+    public synchronized void moveOut() {
+        TableSlot s = tableSlot;
+        if (s != null) {
+            numbers = new Numbers(s.table.price(s.slot), s.table.stockState(s.slot),
+                    s.table.minStockLevel(s.slot));
+            tableSlot = null;
+            // Only now can another product get the slot; anyone still reading
+            // it through s sees that we've left (see stillIn())
+            s.table.free(s.slot);
+        }
+    }
+
+    // Whether the product is still in the slot s, after reading a number from
+    // it. Once a product leaves the table its slot can go straight to another
+    // product, so a number read through an old TableSlot may be the other
+    // product's. The fence keeps the read of the number from moving after the
+    // check.
+    private boolean stillIn(TableSlot s) {
+        VarHandle.acquireFence();
+        return tableSlot == s;
+    }
+
+    // Whether the product changed since the last checkpoint
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    // Say the product needs to go into the next checkpoint (the setters do this)
+    public void markDirty() {
+        this.dirty = true;
+    }
+
+    // Say the product has been saved in a checkpoint
+    public void clearDirty() {
+        this.dirty = false;
     }
 
     // This checks if we're running low on stock
     public boolean isLowStock() {
-        if (quantity <= minStockLevel) {
+        if (getQuantity() <= getMinStockLevel()) {
             return true;
         } else {
             return false;
         }
     }
 
+    // Make a separate copy of this product, so later changes to one don't show
+    // up in the other
+    public Product copy() {
+        Product copy = new Product(null, name, null, getPrice(), getQuantity(), getMinStockLevel());
+        copy.idText = idText;
+        copy.idHigh = idHigh;
+        copy.idLow = idLow;
+        copy.idPacked = idPacked;
+        copy.categoryCode = categoryCode;
+        return copy;
+    }
+
+    // Write the id for BinaryCodec, straight from the two longs if we have them
+    void writeId(BinaryCodec.Writer out) {
+        if (idPacked) {
+            out.writeId(idHigh, idLow);
+        } else {
+            out.writeId(idText);
+        }
+    }
+
+    // Keep the id as two longs too, if we can
+    private void storeId(String id) {
+        UUID uuid = PackedId.parse(id);
+        idText = id;
+        idPacked = uuid != null;
+        idHigh = idPacked ? uuid.getMostSignificantBits() : 0;
+        idLow = idPacked ? uuid.getLeastSignificantBits() : 0;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("id", getId());
+        fields.put("name", name);
+        fields.put("category", getCategory());
+        fields.put("price", getPrice());
+        fields.put("quantity", getQuantity());
+        fields.put("minStockLevel", getMinStockLevel());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        storeId((String) fields.get("id", null));
+        name = (String) fields.get("name", null);
+        categoryCode = StringDictionary.SHARED.code((String) fields.get("category", null));
+        numbers = new Numbers(fields.get("price", 0.0), stockState(fields.get("quantity", 0), 0),
+                fields.get("minStockLevel", 0));
+    }
+
     // This makes the product look nice when we print it
     @Override
     public String toString() {
         String result = "Product{" +
-                "id='" + id + '\'' +
+                "id='" + getId() + '\'' +
                 ", name='" + name + '\'' +
-                ", category='" + category + '\'' +
-                ", price=" + price +
-                ", quantity=" + quantity +
-                ", minStockLevel=" + minStockLevel +
+                ", category='" + getCategory() + '\'' +
+                ", price=" + getPrice() +
+                ", quantity=" + getQuantity() +
+                ", minStockLevel=" + getMinStockLevel() +
                 '}';
         return result;
     }
@@ -0,0 +1,113 @@
+// This class describes one change to the product catalog that needs saving
+// It copies the values it needs when it's created, so it still describes the
+// change correctly even if the product changes again before it gets written.
+// The exception is a stock change, which reads the stock count when it's
+// written (see stockChanged()).
+public class ProductChange {
+    // The kinds of change we save
+    public enum Kind {
+        ADDED, // A new product, with all of its details
+        UPDATED, // New details for a product (everything except the stock count)
+        STOCK_CHANGED, // A new stock count for a product
+        REMOVED // A product was removed
+    }
+
+    private final Kind kind;
+    private final String productId;
+    private final String name;
+    private final String category;
+    private final double price;
+    private final int quantity;
+    private final int minStockLevel;
+    // For a stock change, the product to read the count from
+    private final Product product;
+
+    private ProductChange(Kind kind, String productId, String name, String category, double price, int quantity,
+            int minStockLevel, Product product) {
+        this.kind = kind;
+        this.productId = productId;
+        this.name = name;
+        this.category = category;
+        this.price = price;
+        this.quantity = quantity;
+        this.minStockLevel = minStockLevel;
+        this.product = product;
+    }
+
+    // A new product was added
+    public static ProductChange added(Product product) {
+        return new ProductChange(Kind.ADDED, product.getId(), product.getName(), product.getCategory(),
+                product.getPrice(), product.getQuantity(), product.getMinStockLevel(), null);
+    }
+
+    // A product's details changed
+    public static ProductChange updated(Product product) {
+        return new ProductChange(Kind.UPDATED, product.getId(), product.getName(), product.getCategory(),
+                product.getPrice(), product.getQuantity(), product.getMinStockLevel(), null);
+    }
+
+    // A product's stock count changed
+    // We keep the new count rather than the difference, so saving or replaying
+    // a change twice can't count it twice. The count is read when the change is
+    // written, not now: stock is changed with compare-and-set, and the change
+    // is queued for saving after that, so two changes to one product can reach
+    // the store in the other order. The last one written must hold the latest
+    // count.
+    public static ProductChange stockChanged(Product product) {
+        return new ProductChange(Kind.STOCK_CHANGED, product.getId(), null, null, 0, 0, 0, product);
+    }
+
+    // A product was removed
+    public static ProductChange removed(String productId) {
+        return new ProductChange(Kind.REMOVED, productId, null, null, 0, 0, 0, null);
+    }
+
+    // Getters - get the values
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getProductId() {
+        return productId;
+    }
+
+    // Write the product id for BinaryCodec; for a stock change straight from
+    // the product's two longs (see Product.writeId())
+    void writeProductId(BinaryCodec.Writer out) {
+        if (product != null) {
+            product.writeId(out);
+        } else {
+            out.writeId(productId);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public double getPrice() {
+        return price;
+    }
+
+    public int getQuantity() {
+        return product != null ? product.getQuantity() : quantity;
+    }
+
+    public int getMinStockLevel() {
+        return minStockLevel;
+    }
+
+    // Build the product this change describes (only for ADDED)
+    public Product toProduct() {
+        return new Product(productId, name, category, price, quantity, minStockLevel);
+    }
+
+    @Override
+    public String toString() {
+        return "ProductChange{" + kind + ", productId='" + productId + "'}";
+    }
+}
\ No newline at end of file
@@ -0,0 +1,135 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// This class is the write-ahead log for the product catalog
+// Instead of saving every product after each change, we write down just the
+// change (which product, which fields) here. The full product list is only
+// written now and then as a snapshot, and the log is replayed on top of it when
+// the program starts.
+//
+// Each log file has a generation number. A snapshot remembers the newest
+// generation it includes, so on startup only newer log files get replayed.
+public class ProductLog implements Closeable {
+    private static final int MAGIC = 0x50524457; // "PRDW"
+
+    // The kinds of change we write down
+    private static final byte ADDED = 1;
+    private static final byte UPDATED = 2;
+    private static final byte STOCK_CHANGED = 3;
+    private static final byte REMOVED = 4;
+
+    private final long generation;
+    private final RecordLog log;
+
+    // Open (or create) the log file for this generation
+    public ProductLog(Path path, long generation) throws IOException {
+        this.generation = generation;
+        this.log = new RecordLog(path, MAGIC);
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public Path getPath() {
+        return log.getPath();
+    }
+
+    // True if nothing has been written to this log yet
+    public boolean isEmpty() throws IOException {
+        return log.dataSize() == 0;
+    }
+
+    // Write down these changes, in order, with a single write
+    // Stock changes read their count while being written, so changes are turned
+    // into records and written one batch at a time
+    public synchronized void append(List<ProductChange> changes) throws IOException {
+        List<byte[]> records = new ArrayList<>(changes.size());
+        for (ProductChange change : changes) {
+            records.add(encode(change));
+        }
+        log.appendAll(records);
+    }
+
+    // Apply every change in this log to the products, in the order they happened
+    public void replay(Map<String, Product> products) throws IOException {
+        for (byte[] record : log.readAll()) {
+            BinaryCodec.Reader in = new BinaryCodec.Reader(record);
+            int version = in.readByte();
+            if (version != BinaryCodec.VERSION) {
+                throw new IOException("Unsupported product log record version " + version + " in " + getPath());
+            }
+            int kind = in.readByte();
+
+            if (kind == ADDED) {
+                Product added = BinaryCodec.readProduct(in);
+                products.put(added.getId(), added);
+                continue;
+            }
+
+            String id = in.readId();
+            Product product = products.get(id);
+            if (kind == REMOVED) {
+                products.remove(id);
+            } else if (product == null) {
+                // The product was removed later on, or the record is older than the
+                // snapshot. Either way there's nothing to change.
+                continue;
+            } else if (kind == UPDATED) {
+                product.setName(in.readString());
+                product.setCategory(in.readString());
+                product.setPrice(in.readDouble());
+                product.setMinStockLevel(in.readInt());
+            } else if (kind == STOCK_CHANGED) {
+                product.setQuantity(in.readInt());
+            } else {
+                throw new IOException("Unknown product log record type " + kind + " in " + getPath());
+            }
+        }
+    }
+
+    // Push everything we've written out to the disk
+    public void force() throws IOException {
+        log.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    // Every record starts with the layout version, the kind of change and (except
+    // for ADDED, where it's part of the product) the product id
+    private static byte[] encode(ProductChange change) {
+        BinaryCodec.Writer out = new BinaryCodec.Writer();
+        out.writeByte(BinaryCodec.VERSION);
+        switch (change.getKind()) {
+            case ADDED:
+                out.writeByte(ADDED);
+                BinaryCodec.writeProduct(out, change.toProduct());
+                break;
+            case UPDATED:
+                out.writeByte(UPDATED);
+                change.writeProductId(out);
+                out.writeString(change.getName());
+                out.writeString(change.getCategory());
+                out.writeDouble(change.getPrice());
+                out.writeInt(change.getMinStockLevel());
+                break;
+            case STOCK_CHANGED:
+                out.writeByte(STOCK_CHANGED);
+                change.writeProductId(out);
+                out.writeInt(change.getQuantity());
+                break;
+            case REMOVED:
+                out.writeByte(REMOVED);
+                change.writeProductId(out);
+                break;
+        }
+        return out.toByteArray();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,41 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+// This is how InventoryFileManager keeps the product catalog on disk
+// There is more than one way to do it, and each one is a class that implements
+// this interface. InventoryFileManager takes care of the locking: apply() and
+// sync() can be called from several threads at once, while load(),
+// startCheckpoint() and close() always run on their own.
+public interface ProductStore extends Closeable {
+    // Read back every product that was saved
+    List<Product> load() throws IOException, InventoryException;
+
+    // Save these changes, in order. Saving several changes in one call should
+    // cost about the same as saving one.
+    void apply(List<ProductChange> changes) throws IOException;
+
+    // Make sure everything saved so far is on the disk itself, not just handed
+    // to the operating system
+    void sync() throws IOException;
+
+    // True if something changed since the last checkpoint
+    boolean hasChanges();
+
+    // First half of a checkpoint, called while no product changes can happen.
+    // Returns a number that has to be passed to finishCheckpoint().
+    long startCheckpoint() throws IOException;
+
+    // True if the next checkpoint has to be a full one, with every product,
+    // rather than a delta with only the changed ones
+    boolean needsFullCheckpoint();
+
+    // Second half of a checkpoint, with a copy of the products taken at the same
+    // time as startCheckpoint(). Product changes can happen while this runs.
+    void finishCheckpoint(List<Product> products, long checkpoint) throws IOException;
+
+    // Second half of a delta checkpoint, with copies of just the products
+    // changed since the last checkpoint and the ids of the ones removed since
+    void finishDeltaCheckpoint(List<Product> changed, List<String> removedIds, long checkpoint)
+            throws IOException;
+}
\ No newline at end of file
@@ -0,0 +1,115 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+// This class keeps the numbers of many products (price, quantity and minimum
+// stock level) in plain arrays instead of in each Product object
+// Each product gets a slot number, and its numbers are at that position in the
+// arrays; the Product only remembers its slot. Adding up the catalog's value
+// is then a simple loop over a few arrays, and the garbage collector doesn't
+// have to look inside them, since they hold no references.
+// The arrays come in pages of PAGE_SIZE slots. When we run out of room we add
+// a page rather than copying the arrays, so a change made while the table
+// grows is never lost.
+public class ProductTable {
+    private static final int PAGE_SHIFT = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT; // 1024 slots
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    // For compare-and-set on single stock states
+    private static final VarHandle LONG_ELEMENT = MethodHandles.arrayElementVarHandle(long[].class);
+
+    // One page of slots
+    private static class Page {
+        final double[] prices = new double[PAGE_SIZE];
+        // Quantities, in stock states (see Product.getStockState())
+        final long[] stockStates = new long[PAGE_SIZE];
+        final int[] minStockLevels = new int[PAGE_SIZE];
+        final boolean[] used = new boolean[PAGE_SIZE];
+    }
+
+    // Replaced by a longer copy when a page is added; the pages themselves never
+    // move
+    private volatile Page[] pages = new Page[0];
+    private int size; // Slots handed out so far (guarded by this)
+    // Slots given back, to hand out again (guarded by this)
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+
+    // Give out a slot for a product and put its numbers in it
+    public synchronized int allocate(double price, long stockState, int minStockLevel) {
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            slot = size++;
+            if ((slot >>> PAGE_SHIFT) == pages.length) {
+                Page[] grown = Arrays.copyOf(pages, pages.length + 1);
+                grown[pages.length] = new Page();
+                pages = grown;
+            }
+        }
+        Page page = page(slot);
+        int i = slot & PAGE_MASK;
+        page.prices[i] = price;
+        page.stockStates[i] = stockState;
+        page.minStockLevels[i] = minStockLevel;
+        page.used[i] = true;
+        return slot;
+    }
+
+    // Give a slot back once its product has left the table
+    public synchronized void free(int slot) {
+        page(slot).used[slot & PAGE_MASK] = false;
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    public double price(int slot) {
+        return page(slot).prices[slot & PAGE_MASK];
+    }
+
+    public long stockState(int slot) {
+        return (long) LONG_ELEMENT.getVolatile(page(slot).stockStates, slot & PAGE_MASK);
+    }
+
+    public int minStockLevel(int slot) {
+        return page(slot).minStockLevels[slot & PAGE_MASK];
+    }
+
+    public void setPrice(int slot, double price) {
+        page(slot).prices[slot & PAGE_MASK] = price;
+    }
+
+    public void setStockState(int slot, long stockState) {
+        LONG_ELEMENT.setVolatile(page(slot).stockStates, slot & PAGE_MASK, stockState);
+    }
+
+    // Change a stock state only if it's still expected (see
+    // Product.compareAndSetStockState())
+    public boolean compareAndSetStockState(int slot, long expected, long stockState) {
+        return LONG_ELEMENT.compareAndSet(page(slot).stockStates, slot & PAGE_MASK, expected, stockState);
+    }
+
+    public void setMinStockLevel(int slot, int minStockLevel) {
+        page(slot).minStockLevels[slot & PAGE_MASK] = minStockLevel;
+    }
+
+    // What all the stock is worth (price times quantity, added up)
+    public double totalValue() {
+        double total = 0;
+        for (Page page : pages) {
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                if (page.used[i]) {
+                    total += page.prices[i] * Product.quantityOf(page.stockStates[i]);
+                }
+            }
+        }
+        return total;
+    }
+
+    private Page page(int slot) {
+        return pages[slot >>> PAGE_SHIFT];
+    }
+}
\ No newline at end of file
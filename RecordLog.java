@@ -0,0 +1,275 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// This class is an append-only file of records
+// Every record is written at the end of the file as [length][checksum][data],
+// so adding one record never has to rewrite the ones that came before it.
+// What goes inside a record is up to whoever uses the log.
+public class RecordLog implements Closeable {
+    private static final int FILE_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8; // magic + version
+    private static final int RECORD_HEADER_SIZE = 8; // length + checksum
+    // No real record comes close to this, so anything bigger is garbage
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    // How much of the file scan() reads at once
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private final Path path;
+    private final int magic;
+    private final FileChannel channel;
+
+    // Open (or create) the log and repair a half-written last record if there is
+    // one. The magic number says what kind of log this is, so we never read one
+    // kind of file as another.
+    public RecordLog(Path path, int magic) throws IOException {
+        this.path = path;
+        this.magic = magic;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                writeFileHeader();
+                // Make sure the new file itself survives a crash, not just its contents
+                channel.force(true);
+                syncDirectory(path);
+            } else {
+                checkFileHeader();
+                recover();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // Add one record to the end of the log
+    // Returns the position of the record, for a later scan() to start from
+    public long append(byte[] payload) throws IOException {
+        return appendAll(Collections.singletonList(payload));
+    }
+
+    // Add several records to the end of the log with a single write
+    // Returns the position of the first one
+    public synchronized long appendAll(List<byte[]> payloads) throws IOException {
+        int size = 0;
+        for (byte[] payload : payloads) {
+            size += recordSize(payload);
+        }
+        ByteBuffer records = ByteBuffer.allocate(size);
+        for (byte[] payload : payloads) {
+            records.putInt(payload.length).putInt(checksum(payload)).put(payload);
+        }
+        records.flip();
+        long position = channel.size();
+        try {
+            write(records, position);
+        } catch (IOException e) {
+            // Cut off whatever part of the records made it into the file.
+            // Otherwise the next append would go after it, and recover() would
+            // throw that one away with the rest of the file after the torn
+            // record.
+            try {
+                channel.truncate(position);
+            } catch (IOException again) {
+                e.addSuppressed(again);
+            }
+            throw e;
+        }
+        return position;
+    }
+
+    // How many bytes a record with this much payload takes up in the file
+    public static int recordSize(byte[] payload) {
+        return RECORD_HEADER_SIZE + payload.length;
+    }
+
+    // What scan() hands each record to
+    public interface RecordVisitor {
+        // Return false to stop the scan
+        boolean visit(long position, byte[] payload) throws IOException;
+    }
+
+    // Read every record in the log, oldest first
+    public List<byte[]> readAll() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        scan(0, new RecordVisitor() {
+            public boolean visit(long position, byte[] payload) {
+                records.add(payload);
+                return true;
+            }
+        });
+        return records;
+    }
+
+    // Go through the records one at a time, oldest first, starting at a position
+    // an earlier scan reported (or 0 for the beginning). Only a small buffer is
+    // kept in memory, however big the log is.
+    // Records appended while we scan may or may not be included.
+    public void scan(long fromPosition, RecordVisitor visitor) throws IOException {
+        long end;
+        synchronized (this) {
+            end = channel.size();
+        }
+        long position = walk(Math.max(fromPosition, FILE_HEADER_SIZE), end, visitor);
+        if (position >= 0 && position + RECORD_HEADER_SIZE <= end) {
+            throw new IOException("Corrupt record in " + path + " at offset " + position);
+        }
+    }
+
+    // The position just after the last record, where the next append goes
+    public synchronized long endPosition() throws IOException {
+        return channel.size();
+    }
+
+    // Throw away every record in the log
+    public synchronized void clear() throws IOException {
+        channel.truncate(FILE_HEADER_SIZE);
+    }
+
+    // How many bytes of records the log holds
+    public synchronized long dataSize() throws IOException {
+        return channel.size() - FILE_HEADER_SIZE;
+    }
+
+    // Push everything we've written out to the disk
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    // Sync the directory a file lives in, so that creating, renaming or deleting
+    // the file survives a crash. Not every system can do this (Windows can't open a
+    // directory), and there's nothing more we can do then.
+    public static void syncDirectory(Path file) {
+        Path directory = file.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported here
+        }
+    }
+
+    // Walk the records from the start and cut the file off after the last good
+    // one. A crash in the middle of append() leaves a partial record at the tail,
+    // and we don't want that to break every load from now on.
+    private void recover() throws IOException {
+        long end = channel.size();
+        long position = walk(FILE_HEADER_SIZE, end, new RecordVisitor() {
+            public boolean visit(long position, byte[] payload) {
+                return true;
+            }
+        });
+        if (position < end) {
+            System.err.println("Discarding " + (end - position) + " bytes of incomplete data at the end of " + path);
+            channel.truncate(position);
+        }
+    }
+
+    // Hand the records between position and end to the visitor, reading the file
+    // in big chunks rather than one record at a time.
+    // Returns where it stopped: end if every record was good, the position of the
+    // first bad record otherwise, or -1 if the visitor asked to stop.
+    private long walk(long position, long end, RecordVisitor visitor) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        buffer.limit(0);
+        long bufferStart = position;
+
+        while (position + RECORD_HEADER_SIZE <= end) {
+            // Make sure the buffer holds the whole record header
+            if (position + RECORD_HEADER_SIZE > bufferStart + buffer.limit()) {
+                bufferStart = position;
+                fill(buffer, bufferStart, end);
+            }
+            buffer.position((int) (position - bufferStart));
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE || position + RECORD_HEADER_SIZE + length > end) {
+                return position;
+            }
+
+            byte[] payload = new byte[length];
+            long payloadStart = position + RECORD_HEADER_SIZE;
+            if (payloadStart + length <= bufferStart + buffer.limit()) {
+                buffer.get(payload);
+            } else {
+                read(ByteBuffer.wrap(payload), payloadStart);
+            }
+            if (checksum(payload) != checksum) {
+                return position;
+            }
+            if (!visitor.visit(position, payload)) {
+                return -1;
+            }
+            position = payloadStart + length;
+        }
+        return position;
+    }
+
+    private void writeFileHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(magic).putInt(FILE_VERSION).flip();
+        write(header, 0);
+    }
+
+    private void checkFileHeader() throws IOException {
+        if (channel.size() < FILE_HEADER_SIZE) {
+            throw new IOException(path + " is too short to be a record log");
+        }
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        read(header, 0);
+        header.flip();
+        if (header.getInt() != magic) {
+            throw new IOException(path + " is not the kind of file we expected");
+        }
+        int version = header.getInt();
+        if (version != FILE_VERSION) {
+            throw new IOException("Unsupported file version " + version + " in " + path);
+        }
+    }
+
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of " + path);
+            }
+            position += n;
+        }
+    }
+
+    // Fill the scan buffer with the file from this position on
+    private void fill(ByteBuffer buffer, long position, long end) throws IOException {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end - position));
+        read(buffer, position);
+        buffer.flip();
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,58 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// This class gives every different string a small number (a code), so objects
+// can keep the number instead of their own copy of the string
+// Categories and user ids repeat a lot (thousands of transactions by the same
+// few users), so each one is stored once here and the products and
+// transactions hold an int. Codes are never taken back, so only use this for
+// strings that come from a small set.
+public class StringDictionary {
+    // The dictionary categories and user ids go in
+    public static final StringDictionary SHARED = new StringDictionary();
+
+    // Code used for null
+    public static final int NULL_CODE = -1;
+
+    private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    // Code -> string. A slot is filled in before its code is handed out, so
+    // lookups don't need the lock.
+    private volatile String[] strings = new String[16];
+    private int size; // Guarded by this
+
+    // The code for a string, giving it a new one if it hasn't got one yet
+    public int code(String value) {
+        if (value == null) {
+            return NULL_CODE;
+        }
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        synchronized (this) {
+            code = codes.get(value);
+            if (code == null) {
+                String[] grown = strings;
+                if (size == grown.length) {
+                    grown = Arrays.copyOf(grown, size * 2);
+                }
+                grown[size] = value;
+                strings = grown; // Publish the string before anyone can get its code
+                code = size++;
+                codes.put(value, code);
+            }
+            return code;
+        }
+    }
+
+    // The string a code stands for
+    public String lookup(int code) {
+        return code == NULL_CODE ? null : strings[code];
+    }
+
+    // How many different strings the dictionary holds
+    public int size() {
+        return codes.size();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,115 @@
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// This class makes the thread pools used for background work
+// A normal pool keeps a few platform threads; while one of them waits for a
+// file to be written it can't do anything else, so the pool size is also how
+// many waits can overlap. In virtual thread mode every task gets its own
+// virtual thread instead, which is cheap to create and to park while it waits.
+// A limit still says how many tasks may run at once, so a big batch doesn't
+// hit the files with thousands of writes together.
+// Virtual threads need Java 21. On older Java we fall back to a normal pool of
+// the same size, so the program runs the same way everywhere.
+public class TaskExecutors {
+    // Java 21's Executors.newVirtualThreadPerTaskExecutor(), or null if this
+    // Java doesn't have it. We look it up by name so the code still compiles
+    // on Java 17.
+    private static final Method VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutor();
+
+    private TaskExecutors() {
+    }
+
+    // Whether this Java can run tasks on virtual threads
+    public static boolean virtualThreadsAvailable() {
+        return VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    // An executor that runs at most limit tasks at a time, on virtual threads
+    // if asked for (and available), otherwise on a fixed pool of limit threads
+    public static ExecutorService newExecutor(boolean virtualThreads, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be greater than zero: " + limit);
+        }
+        if (virtualThreads && virtualThreadsAvailable()) {
+            try {
+                ExecutorService executor = (ExecutorService) VIRTUAL_THREAD_EXECUTOR.invoke(null);
+                return new LimitedExecutor(executor, limit);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Could not start virtual threads, using a thread pool: " + e.getMessage());
+            }
+        }
+        return Executors.newFixedThreadPool(limit);
+    }
+
+    private static Method findVirtualThreadExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    // Starts every task right away on its own thread, but makes it wait for a
+    // permit before doing its work. Waiting happens on the task's own virtual
+    // thread, so whoever submits the task never blocks (BatchProcessor submits
+    // every line of a batch before waiting for any, like with a normal pool).
+    private static class LimitedExecutor extends AbstractExecutorService {
+        private final ExecutorService executor;
+        private final Semaphore permits;
+
+        LimitedExecutor(ExecutorService executor, int limit) {
+            this.executor = executor;
+            this.permits = new Semaphore(limit);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        permits.acquire();
+                    } catch (InterruptedException e) {
+                        // Stopped by shutdownNow() while waiting for its turn
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    try {
+                        task.run();
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return executor.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return executor.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return executor.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return executor.awaitTermination(timeout, unit);
+        }
+    }
+}
\ No newline at end of file
@@ -1,6 +1,11 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.UUID;
 
 // This class keeps track of all changes made to inventory
 // Serializable means we can save it to a file
@@ -15,32 +20,80 @@ public class Transaction implements Serializable {
         RETURN // When customers return items
     }
 
+    // Old transaction files saved these fields with Java serialization, so
+    // that's still what gets saved and read back (see writeObject() and
+    // readObject())
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("id", String.class),
+            new ObjectStreamField("productId", String.class),
+            new ObjectStreamField("type", TransactionType.class),
+            new ObjectStreamField("quantity", int.class),
+            new ObjectStreamField("timestamp", LocalDateTime.class),
+            new ObjectStreamField("userId", String.class)
+    };
+
     // These are all the details we store about a transaction
-    public String id; // Unique identifier for the transaction
-    public String productId; // Which product was changed
-    public TransactionType type; // What kind of change was made
-    public int quantity; // How many items were changed
-    public LocalDateTime timestamp; // When the change happened
-    public String userId; // Who made the change
+    // Ids are kept as two longs when they're UUIDs, and as text otherwise (see
+    // PackedId); the user id is kept as its code in StringDictionary.SHARED.
+    // The getters give back the same strings either way.
+    private long idHigh; // Unique identifier for the transaction
+    private long idLow;
+    private String idText; // Only if the id isn't a UUID
+    private long productIdHigh; // Which product was changed
+    private long productIdLow;
+    private String productIdText; // Only if the product id isn't a UUID
+    private TransactionType type; // What kind of change was made
+    private int quantity; // How many items were changed
+    private LocalDateTime timestamp; // When the change happened
+    private int userCode; // Who made the change
 
     // This is how we create a new transaction
     public Transaction(String id, String productId, TransactionType type, int quantity, String userId) {
-        this.id = id;
-        this.productId = productId;
+        setId(id);
+        setProductId(productId);
         this.type = type;
         this.quantity = quantity;
         this.timestamp = LocalDateTime.now(); // Set the time to right now
-        this.userId = userId;
+        this.userCode = StringDictionary.SHARED.code(userId);
+    }
+
+    // This is how BinaryCodec creates a transaction it read back, with the ids
+    // as map keys (see BinaryCodec.Reader.readIdKey()), so UUID ids go
+    // straight into the two longs
+    Transaction(Object idKey, Object productKey, TransactionType type, int quantity, LocalDateTime timestamp,
+            String userId) {
+        if (idKey instanceof UUID) {
+            this.idHigh = ((UUID) idKey).getMostSignificantBits();
+            this.idLow = ((UUID) idKey).getLeastSignificantBits();
+        } else {
+            this.idText = (String) idKey;
+        }
+        if (productKey instanceof UUID) {
+            this.productIdHigh = ((UUID) productKey).getMostSignificantBits();
+            this.productIdLow = ((UUID) productKey).getLeastSignificantBits();
+        } else {
+            this.productIdText = (String) productKey;
+        }
+        this.type = type;
+        this.quantity = quantity;
+        this.timestamp = timestamp;
+        this.userCode = StringDictionary.SHARED.code(userId);
     }
 
     // These methods let us get and set the transaction's details
     // Getters - get the values
     public String getId() {
-        return id;
+        return idText != null ? idText : PackedId.format(idHigh, idLow);
     }
 
     public String getProductId() {
-        return productId;
+        return productIdText != null ? productIdText : PackedId.format(productIdHigh, productIdLow);
+    }
+
+    // The product id as a map key (see PackedId.key()), made without turning
+    // the two longs into text
+    public Object getProductKey() {
+        return productIdText != null ? productIdText : new UUID(productIdHigh, productIdLow);
     }
 
     public TransactionType getType() {
@@ -56,16 +109,22 @@ public class Transaction implements Serializable {
     }
 
     public String getUserId() {
-        return userId;
+        return StringDictionary.SHARED.lookup(userCode);
     }
 
     // Setters - change the values
     public void setId(String id) {
-        this.id = id;
+        UUID uuid = PackedId.parse(id);
+        this.idHigh = uuid == null ? 0 : uuid.getMostSignificantBits();
+        this.idLow = uuid == null ? 0 : uuid.getLeastSignificantBits();
+        this.idText = uuid == null ? id : null;
     }
 
     public void setProductId(String productId) {
-        this.productId = productId;
+        UUID uuid = PackedId.parse(productId);
+        this.productIdHigh = uuid == null ? 0 : uuid.getMostSignificantBits();
+        this.productIdLow = uuid == null ? 0 : uuid.getLeastSignificantBits();
+        this.productIdText = uuid == null ? productId : null;
     }
 
     public void setType(TransactionType type) {
@@ -81,7 +140,43 @@ public class Transaction implements Serializable {
     }
 
     public void setUserId(String userId) {
-        this.userId = userId;
+        this.userCode = StringDictionary.SHARED.code(userId);
+    }
+
+    // Write the ids for BinaryCodec, straight from the two longs when we have
+    // them
+    void writeIds(BinaryCodec.Writer out) {
+        if (idText != null) {
+            out.writeId(idText);
+        } else {
+            out.writeId(idHigh, idLow);
+        }
+        if (productIdText != null) {
+            out.writeId(productIdText);
+        } else {
+            out.writeId(productIdHigh, productIdLow);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("id", getId());
+        fields.put("productId", getProductId());
+        fields.put("type", type);
+        fields.put("quantity", quantity);
+        fields.put("timestamp", timestamp);
+        fields.put("userId", getUserId());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        setId((String) fields.get("id", null));
+        setProductId((String) fields.get("productId", null));
+        type = (TransactionType) fields.get("type", null);
+        quantity = fields.get("quantity", 0);
+        timestamp = (LocalDateTime) fields.get("timestamp", null);
+        setUserId((String) fields.get("userId", null));
     }
 
     // This makes the transaction look nice when we print it
@@ -93,12 +188,12 @@ public class Transaction implements Serializable {
 
         // Create a string with all the transaction details
         String result = "Transaction{" +
-                "id='" + id + '\'' +
-                ", productId='" + productId + '\'' +
+                "id='" + getId() + '\'' +
+                ", productId='" + getProductId() + '\'' +
                 ", type=" + type +
                 ", quantity=" + quantity +
                 ", timestamp=" + formattedDate +
-                ", userId='" + userId + '\'' +
+                ", userId='" + getUserId() + '\'' +
                 '}';
         return result;
     }
@@ -0,0 +1,313 @@
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// This class is a compressed, read-only copy of a sealed transaction segment
+// Old history is read rarely but kept for a long time, and it's very
+// repetitive (the same product ids, user ids and four transaction types over
+// and over), so it compresses well.
+// The transactions are packed into blocks of about 64 KB that are compressed
+// one by one. A block index at the end of the file says where each block starts
+// and which transactions (counted from 0) it holds, so reading one page only
+// has to decompress the blocks that page falls in.
+//
+// File layout:
+//   [magic][version]
+//   [compressed block]...
+//   [block index: offset, compressed size, size, first transaction, count, checksum]...
+//   [index offset][block count][magic]
+public class TransactionArchive implements Closeable {
+    private static final int MAGIC = 0x54584152; // "TXAR"
+    private static final byte FILE_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 5; // magic + version
+    private static final int FOOTER_SIZE = 16; // index offset + block count + magic
+    private static final int INDEX_ENTRY_SIZE = 32;
+    // Blocks are cut once they hold this much uncompressed data
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    // Where one compressed block is and what's in it
+    private static class Block {
+        final long offset;
+        final int compressedSize;
+        final int size;
+        final long firstTransaction;
+        final int count;
+        final int checksum;
+
+        Block(long offset, int compressedSize, int size, long firstTransaction, int count, int checksum) {
+            this.offset = offset;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.firstTransaction = firstTransaction;
+            this.count = count;
+            this.checksum = checksum;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final List<Block> blocks = new ArrayList<>();
+
+    // Open an archive and read its block index
+    public TransactionArchive(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            readBlockIndex();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Write an archive of the transactions in a journal
+    // The file is synced before we return, so it can be renamed into place
+    // straight away
+    public static void write(Path path, TransactionJournal journal) throws IOException {
+        List<Block> blocks = new ArrayList<>();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (FileOutputStream file = new FileOutputStream(path.toFile())) {
+            FileChannel out = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putInt(MAGIC).put(FILE_VERSION).flip();
+            writeFully(out, header);
+
+            // Each transaction is stored as [length][record], the same record
+            // the journal keeps
+            BinaryCodec.Writer block = new BinaryCodec.Writer(BLOCK_SIZE + 1024);
+            long[] counts = new long[2]; // transactions so far, transactions in this block
+            IOException[] failure = new IOException[1];
+            journal.scan(new TransactionJournal.TransactionVisitor() {
+                public boolean visit(Transaction transaction) {
+                    byte[] record = TransactionJournal.encode(transaction);
+                    block.writeUnsignedLong(record.length);
+                    block.writeBytes(record);
+                    counts[1]++;
+                    if (block.size() >= BLOCK_SIZE) {
+                        try {
+                            blocks.add(writeBlock(out, deflater, block, counts[0], (int) counts[1]));
+                        } catch (IOException e) {
+                            failure[0] = e;
+                            return false;
+                        }
+                        counts[0] += counts[1];
+                        counts[1] = 0;
+                    }
+                    return true;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            if (counts[1] > 0) {
+                blocks.add(writeBlock(out, deflater, block, counts[0], (int) counts[1]));
+            }
+
+            long indexOffset = out.position();
+            ByteBuffer index = ByteBuffer.allocate(blocks.size() * INDEX_ENTRY_SIZE + FOOTER_SIZE);
+            for (Block b : blocks) {
+                index.putLong(b.offset).putInt(b.compressedSize).putInt(b.size)
+                        .putLong(b.firstTransaction).putInt(b.count).putInt(b.checksum);
+            }
+            index.putLong(indexOffset).putInt(blocks.size()).putInt(MAGIC).flip();
+            writeFully(out, index);
+            file.getFD().sync();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // How many transactions the archive holds
+    public long count() {
+        if (blocks.isEmpty()) {
+            return 0;
+        }
+        Block last = blocks.get(blocks.size() - 1);
+        return last.firstTransaction + last.count;
+    }
+
+    // Read up to limit transactions after skipping the first ones
+    public List<Transaction> read(long skip, int limit) throws IOException {
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = findBlock(skip); i < blocks.size() && transactions.size() < limit; i++) {
+            Block block = blocks.get(i);
+            BinaryCodec.Reader records = readBlock(block);
+            for (long n = block.firstTransaction; records.hasRemaining() && transactions.size() < limit; n++) {
+                byte[] record = records.readBytes((int) records.readUnsignedLong());
+                if (n >= skip) {
+                    transactions.add(TransactionJournal.decode(record));
+                }
+            }
+        }
+        return transactions;
+    }
+
+    // Read the transactions with the given numbers (counted from 0, smallest
+    // first), unpacking each block they're in only once
+    public List<Transaction> read(int[] ordinals) throws IOException {
+        List<Transaction> transactions = new ArrayList<>();
+        if (ordinals.length > 0 && ordinals[ordinals.length - 1] >= count()) {
+            throw new IOException("Transaction " + ordinals[ordinals.length - 1] + " is missing from " + path);
+        }
+        int next = 0;
+        while (next < ordinals.length) {
+            Block block = blocks.get(findBlock(ordinals[next]));
+            BinaryCodec.Reader records = readBlock(block);
+            for (long n = block.firstTransaction; records.hasRemaining() && next < ordinals.length; n++) {
+                byte[] record = records.readBytes((int) records.readUnsignedLong());
+                if (n == ordinals[next]) {
+                    transactions.add(TransactionJournal.decode(record));
+                    next++;
+                }
+            }
+        }
+        return transactions;
+    }
+
+    // Go through the transactions one at a time
+    // Returns false if the visitor stopped the scan early
+    public boolean scan(TransactionJournal.TransactionVisitor visitor) throws IOException {
+        for (Block block : blocks) {
+            BinaryCodec.Reader records = readBlock(block);
+            while (records.hasRemaining()) {
+                byte[] record = records.readBytes((int) records.readUnsignedLong());
+                if (!visitor.visit(TransactionJournal.decode(record))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // The block holding the transaction with this number (counted from 0)
+    private int findBlock(long transaction) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (blocks.get(middle).firstTransaction <= transaction) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private static Block writeBlock(FileChannel out, Deflater deflater, BinaryCodec.Writer block,
+            long firstTransaction, int count) throws IOException {
+        byte[] data = block.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteBuffer compressed = ByteBuffer.allocate(data.length + 64);
+        while (!deflater.finished()) {
+            if (!compressed.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(compressed.capacity() * 2);
+                compressed.flip();
+                bigger.put(compressed);
+                compressed = bigger;
+            }
+            deflater.deflate(compressed);
+        }
+        compressed.flip();
+
+        long offset = out.position();
+        int compressedSize = compressed.remaining();
+        writeFully(out, compressed);
+        block.clear();
+        return new Block(offset, compressedSize, data.length, firstTransaction, count, (int) crc.getValue());
+    }
+
+    private BinaryCodec.Reader readBlock(Block block) throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(block.compressedSize);
+        readFully(compressed, block.offset);
+        compressed.flip();
+
+        byte[] data = new byte[block.size];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int n = inflater.inflate(data);
+            if (n != block.size || !inflater.finished()) {
+                throw new IOException("Damaged block at offset " + block.offset + " in " + path);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Damaged block at offset " + block.offset + " in " + path, e);
+        } finally {
+            inflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if ((int) crc.getValue() != block.checksum) {
+            throw new IOException("Damaged block at offset " + block.offset + " in " + path);
+        }
+        return new BinaryCodec.Reader(data);
+    }
+
+    private void readBlockIndex() throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+        if (size < FILE_HEADER_SIZE + FOOTER_SIZE) {
+            throw new IOException(path + " is too short to be a transaction archive");
+        }
+        readFully(header, 0);
+        readFully(footer, size - FOOTER_SIZE);
+        header.flip();
+        footer.flip();
+        long indexOffset = footer.getLong();
+        int blockCount = footer.getInt();
+        if (header.getInt() != MAGIC || footer.getInt() != MAGIC
+                || indexOffset + (long) blockCount * INDEX_ENTRY_SIZE + FOOTER_SIZE != size) {
+            throw new IOException(path + " is damaged or not the kind of file we expected");
+        }
+        int version = header.get();
+        if (version != FILE_VERSION) {
+            throw new IOException("Unsupported file version " + version + " in " + path);
+        }
+
+        ByteBuffer index = ByteBuffer.allocate(blockCount * INDEX_ENTRY_SIZE);
+        readFully(index, indexOffset);
+        index.flip();
+        for (int i = 0; i < blockCount; i++) {
+            blocks.add(new Block(index.getLong(), index.getInt(), index.getInt(), index.getLong(), index.getInt(),
+                    index.getInt()));
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of " + path);
+            }
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,181 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// This class keeps an append-only journal of transactions on disk
+// Each transaction is one record in a RecordLog, so saving a transaction never
+// has to rewrite the ones that came before it
+public class TransactionJournal implements Closeable {
+    // The first bytes of every journal file, so we know it's really one of ours
+    private static final int MAGIC = 0x54584A4C; // "TXJL"
+
+    private final RecordLog log;
+
+    // Open (or create) the journal
+    public TransactionJournal(Path path) throws IOException {
+        this.log = new RecordLog(path, MAGIC);
+    }
+
+    // Add one transaction to the end of the journal
+    // Returns where its record starts in the file
+    public long append(Transaction transaction) throws IOException {
+        return log.append(encode(transaction));
+    }
+
+    // Add several transactions to the end of the journal with a single write
+    // Returns where each one's record starts in the file
+    public long[] appendAll(List<Transaction> transactions) throws IOException {
+        List<byte[]> records = new ArrayList<>(transactions.size());
+        for (Transaction transaction : transactions) {
+            records.add(encode(transaction));
+        }
+        long[] positions = new long[records.size()];
+        long position = log.appendAll(records);
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = position;
+            position += RecordLog.recordSize(records.get(i));
+        }
+        return positions;
+    }
+
+    // What scan() hands each transaction to
+    public interface TransactionVisitor {
+        // Return false to stop the scan
+        boolean visit(Transaction transaction);
+    }
+
+    // What the other scan() hands each transaction to, along with where its
+    // record starts in the file
+    public interface PositionedTransactionVisitor {
+        // Return false to stop the scan
+        boolean visit(long position, Transaction transaction);
+    }
+
+    // Read every transaction in the journal, oldest first
+    public List<Transaction> readAll() throws IOException {
+        return read(0, Integer.MAX_VALUE);
+    }
+
+    // Read one page of transactions: skip the first ones, then read up to limit
+    public List<Transaction> read(long skip, int limit) throws IOException {
+        List<Transaction> transactions = new ArrayList<>();
+        if (limit <= 0) {
+            return transactions;
+        }
+        log.scan(0, new RecordLog.RecordVisitor() {
+            private long skipped = 0;
+
+            public boolean visit(long position, byte[] payload) throws IOException {
+                // Skipped records aren't decoded, only stepped over
+                if (skipped < skip) {
+                    skipped++;
+                    return true;
+                }
+                transactions.add(decode(payload));
+                return transactions.size() < limit;
+            }
+        });
+        return transactions;
+    }
+
+    // Go through the transactions one at a time, oldest first, without keeping
+    // them all in memory
+    // Returns false if the visitor stopped the scan early
+    public boolean scan(TransactionVisitor visitor) throws IOException {
+        boolean[] stopped = new boolean[1];
+        log.scan(0, new RecordLog.RecordVisitor() {
+            public boolean visit(long position, byte[] payload) throws IOException {
+                stopped[0] = !visitor.visit(decode(payload));
+                return !stopped[0];
+            }
+        });
+        return !stopped[0];
+    }
+
+    // Go through the transactions one at a time, starting at a position an
+    // earlier scan or append() reported (or 0 for the beginning)
+    public void scan(long fromPosition, PositionedTransactionVisitor visitor) throws IOException {
+        log.scan(fromPosition, new RecordLog.RecordVisitor() {
+            public boolean visit(long position, byte[] payload) throws IOException {
+                return visitor.visit(position, decode(payload));
+            }
+        });
+    }
+
+    // Read the transactions with the given numbers (counted from 0, smallest
+    // first)
+    // chunkStarts holds where every chunkSize-th record starts, so instead of
+    // reading from the beginning we jump close to each wanted transaction and
+    // only step over the few records before it
+    public List<Transaction> read(int[] ordinals, List<Long> chunkStarts, int chunkSize) throws IOException {
+        List<Transaction> transactions = new ArrayList<>();
+        int[] next = new int[1];
+        while (next[0] < ordinals.length) {
+            int found = next[0];
+            int chunk = ordinals[next[0]] / chunkSize;
+            long[] ordinal = {(long) chunk * chunkSize};
+            log.scan(chunkStarts.get(chunk), new RecordLog.RecordVisitor() {
+                public boolean visit(long position, byte[] payload) throws IOException {
+                    // Records we don't want aren't decoded, only stepped over
+                    if (ordinal[0] == ordinals[next[0]]) {
+                        transactions.add(decode(payload));
+                        next[0]++;
+                        if (next[0] == ordinals.length) {
+                            return false;
+                        }
+                    }
+                    ordinal[0]++;
+                    // Carry on if the next one is in this chunk or the one after;
+                    // otherwise it's quicker to jump to its chunk
+                    return ordinals[next[0]] / chunkSize <= ordinal[0] / chunkSize + 1;
+                }
+            });
+            if (next[0] == found) {
+                throw new IOException("Transaction " + ordinals[found] + " is missing from " + log.getPath());
+            }
+        }
+        return transactions;
+    }
+
+    // How many bytes of transactions the journal holds
+    public long dataSize() throws IOException {
+        return log.dataSize();
+    }
+
+    // Throw away everything in the journal and write these transactions instead
+    public synchronized void rewrite(List<Transaction> transactions) throws IOException {
+        log.clear();
+        for (Transaction transaction : transactions) {
+            append(transaction);
+        }
+    }
+
+    // Push everything we've written out to the disk
+    public void force() throws IOException {
+        log.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    // The record we keep for one transaction
+    static byte[] encode(Transaction transaction) {
+        BinaryCodec.Writer out = new BinaryCodec.Writer();
+        out.writeByte(BinaryCodec.VERSION);
+        BinaryCodec.writeTransaction(out, transaction);
+        return out.toByteArray();
+    }
+
+    static Transaction decode(byte[] payload) throws IOException {
+        BinaryCodec.Reader in = new BinaryCodec.Reader(payload);
+        int version = in.readByte();
+        if (version != BinaryCodec.VERSION) {
+            throw new IOException("Unsupported transaction record version " + version);
+        }
+        return BinaryCodec.readTransaction(in);
+    }
+}
\ No newline at end of file
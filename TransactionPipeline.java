@@ -0,0 +1,371 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// This class writes transactions to the transactions file, in order, from a
+// single writer thread
+// Any thread can hand in transactions. Each one first claims a sequence number
+// (1, 2, 3, ...) and later publishes the transaction under it; the writer
+// writes them out strictly in sequence order, so claiming a number while the
+// stock change happens keeps every product's transactions in the order its
+// stock changed. Whatever is ready when the writer comes round is written with
+// a single write (and a single sync).
+// The transactions wait in a ring buffer: a fixed array that the sequence
+// numbers go round and round. A slot is free again once the writer has taken
+// its transaction out. Before claiming, a thread reserves room in the buffer;
+// that's where it waits if the writer is a whole buffer behind (or whatever
+// the overflow policy says instead), so memory use stays the same however big
+// a burst of changes is. Claiming itself never waits, so it's safe to do while
+// holding locks.
+public class TransactionPipeline {
+    // How many transactions can wait to be written (a power of two)
+    public static final int DEFAULT_CAPACITY = 4096;
+    // Write at most this many transactions in one go
+    private static final int MAX_BATCH_SIZE = 1024;
+    // How long close() waits for the writer to finish
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    // What reserve() does when the buffer is full
+    public enum OverflowPolicy {
+        BLOCK, // Wait for the writer to make room
+        CALLER_RUNS, // Write the waiting transactions ourselves to make room
+        FAIL_FAST // Refuse, so the change is turned down before it happens
+    }
+
+    // What the writer does with each batch
+    public interface BatchWriter {
+        void write(List<Transaction> transactions) throws InventoryException;
+    }
+
+    // How full the buffer is and what the overflow policy has had to do, as it
+    // was when asked for
+    public static class QueueStats {
+        private final int capacity;
+        private final long depth;
+        private final long peakDepth;
+        private final long waits;
+        private final long callerRuns;
+        private final long rejected;
+        private final long failed;
+
+        QueueStats(int capacity, long depth, long peakDepth, long waits, long callerRuns, long rejected,
+                long failed) {
+            this.capacity = capacity;
+            this.depth = depth;
+            this.peakDepth = peakDepth;
+            this.waits = waits;
+            this.callerRuns = callerRuns;
+            this.rejected = rejected;
+            this.failed = failed;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        // Transactions waiting in the queue (claimed, not yet taken out to be
+        // written)
+        public long getDepth() {
+            return depth;
+        }
+
+        // The most there have ever been
+        public long getPeakDepth() {
+            return peakDepth;
+        }
+
+        // How many reservations had to wait for room
+        public long getWaits() {
+            return waits;
+        }
+
+        // How many batches were written by a claiming thread (CALLER_RUNS)
+        public long getCallerRuns() {
+            return callerRuns;
+        }
+
+        // How many reservations were turned down (FAIL_FAST)
+        public long getRejected() {
+            return rejected;
+        }
+
+        // How many transactions could not be written to the file
+        public long getFailed() {
+            return failed;
+        }
+
+        @Override
+        public String toString() {
+            return "QueueStats{depth=" + depth + "/" + capacity + ", peakDepth=" + peakDepth + ", waits=" + waits
+                    + ", callerRuns=" + callerRuns + ", rejected=" + rejected + ", failed=" + failed + "}";
+        }
+    }
+
+    private final BatchWriter batchWriter;
+    private final OverflowPolicy overflowPolicy;
+    private final Transaction[] slots;
+    // The sequence number last published in each slot (0 if none yet), so the
+    // writer can tell a slot is ready without locking
+    private final AtomicLongArray published;
+    private final int mask;
+    // One permit for each free slot. reserve() takes one, and the writer gives
+    // them back as it takes transactions out.
+    private final Semaphore room;
+    // The last sequence number handed out
+    private final AtomicLong claimed = new AtomicLong();
+    // The last sequence number taken out of the buffer to be written
+    private volatile long taken;
+    // The last sequence number finished with, written or not
+    private volatile long handled;
+    // Every sequence number up to this one has been written to the file (see
+    // getLastDurableSequence())
+    private volatile long durable;
+    private volatile boolean running = true;
+    private final Thread writer;
+    // Held while taking transactions out and writing them, by the writer thread
+    // or by a claiming thread under CALLER_RUNS, so batches go out one at a time
+    // and in order
+    private final Object drainLock = new Object();
+    // flush() waits on this for the writer to catch up
+    private final Object progress = new Object();
+    private final List<Transaction> batch = new ArrayList<>(); // Guarded by drainLock
+
+    // For QueueStats
+    private final AtomicLong peakDepth = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    // Start the writer thread
+    public TransactionPipeline(BatchWriter batchWriter, int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.batchWriter = batchWriter;
+        this.overflowPolicy = overflowPolicy;
+        this.slots = new Transaction[capacity];
+        this.published = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        this.room = new Semaphore(capacity);
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "transaction-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // Make sure there'll be a free slot for the next claim(), before taking
+    // any locks. If the buffer is full, what happens depends on the overflow
+    // policy. Every reservation must be used by claim() or given back with
+    // unreserve(). Fails once the pipeline is closed.
+    public void reserve() throws InventoryException {
+        if (!running) {
+            throw closedException();
+        }
+        if (room.tryAcquire()) {
+            return;
+        }
+        if (overflowPolicy == OverflowPolicy.FAIL_FAST) {
+            rejected.incrementAndGet();
+            throw new InventoryException("Too many transactions waiting to be recorded ("
+                    + slots.length + "), try again later",
+                    InventoryException.ErrorCode.TRANSACTION_FAILED);
+        }
+        waits.incrementAndGet();
+        try {
+            while (true) {
+                if (overflowPolicy == OverflowPolicy.CALLER_RUNS && drainOnce()) {
+                    // Write what's ready ourselves; we may still have to wait if
+                    // the oldest number isn't published yet
+                    callerRuns.incrementAndGet();
+                    if (room.tryAcquire()) {
+                        return;
+                    }
+                } else if (room.tryAcquire(1, TimeUnit.MILLISECONDS)) {
+                    // Timed, so under CALLER_RUNS we look again for something to
+                    // write, and we notice close()
+                    return;
+                }
+                if (!running) {
+                    throw closedException();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InventoryException("Interrupted while waiting to record a transaction", e,
+                    InventoryException.ErrorCode.TRANSACTION_FAILED);
+        }
+    }
+
+    // Give back a reservation that won't be claimed after all
+    public void unreserve() {
+        room.release();
+    }
+
+    // Take the next place in the order, using up a reservation (even if it
+    // fails). Never waits.
+    // Every claimed number must be given to publish() or cancel(), or the writer
+    // waits for it forever. Fails once the pipeline is closed.
+    public long claim() throws InventoryException {
+        long sequence = claimed.incrementAndGet();
+
+        // Checked after taking the number: either close() sees our number and
+        // the writer waits for it, or we see close() and give it back
+        if (!running) {
+            cancel(sequence);
+            throw closedException();
+        }
+        long depth = sequence - taken;
+        if (depth > peakDepth.get()) {
+            peakDepth.accumulateAndGet(depth, Math::max);
+        }
+        return sequence;
+    }
+
+    // Hand in the transaction for a claimed number
+    public void publish(long sequence, Transaction transaction) {
+        int slot = (int) sequence & mask;
+        slots[slot] = transaction;
+        published.set(slot, sequence); // Makes the transaction visible to the writer
+        LockSupport.unpark(writer);
+    }
+
+    // Give up a claimed number, when the change it was for was undone
+    public void cancel(long sequence) {
+        publish(sequence, null);
+    }
+
+    // Reserve and claim a number and hand in the transaction straight away
+    public long submit(Transaction transaction) throws InventoryException {
+        reserve();
+        long sequence = claim();
+        publish(sequence, transaction);
+        return sequence;
+    }
+
+    // The sequence number up to which every transaction has been written to
+    // the file (0 if none yet). With SYNC or GROUP durability they're on disk.
+    // Transactions that fail to write are reported and skipped, but this stays
+    // before the first of them from then on, since they never will be written;
+    // getStats() counts them.
+    public long getLastDurableSequence() {
+        return durable;
+    }
+
+    // The last sequence number handed out
+    public long getLastClaimedSequence() {
+        return claimed.get();
+    }
+
+    public QueueStats getStats() {
+        long depth = Math.min(Math.max(0, claimed.get() - taken), slots.length);
+        return new QueueStats(slots.length, depth, peakDepth.get(), waits.get(), callerRuns.get(), rejected.get(),
+                failed.get());
+    }
+
+    // Wait until every transaction claimed so far has been written (or has
+    // failed)
+    public void flush() {
+        long target = claimed.get();
+        synchronized (progress) {
+            while (handled < target && writer.isAlive()) {
+                try {
+                    progress.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Stop taking new transactions, write the ones already claimed and stop the
+    // writer thread
+    // Gives up after CLOSE_TIMEOUT_SECONDS: if a claimed number is never
+    // published or cancelled, the writer can't get past it, and we'd rather
+    // report the transactions left behind than hang.
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(CLOSE_TIMEOUT_SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            System.err.println("Gave up waiting for transactions to be recorded: " + (claimed.get() - taken)
+                    + " transactions from sequence number " + (taken + 1) + " on were not written");
+        }
+    }
+
+    private static InventoryException closedException() {
+        return new InventoryException("Transaction recording has been shut down",
+                InventoryException.ErrorCode.TRANSACTION_FAILED);
+    }
+
+    // This is what the writer thread does
+    private void writeLoop() {
+        while (true) {
+            if (!drainOnce()) {
+                // Nothing ready. Stop once everything claimed has been written;
+                // otherwise wait for publish() to wake us
+                if (!running && claimed.get() == taken) {
+                    break;
+                }
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    // Take everything that's ready, in order, up to the first gap, and write it
+    // Returns false if nothing was ready
+    private boolean drainOnce() {
+        synchronized (drainLock) {
+            long first = taken + 1;
+            long next = first;
+            while (next - first < MAX_BATCH_SIZE && published.get((int) next & mask) == next) {
+                int slot = (int) next & mask;
+                if (slots[slot] != null) {
+                    batch.add(slots[slot]);
+                    slots[slot] = null;
+                }
+                next++;
+            }
+            long last = next - 1;
+            if (last < first) {
+                return false;
+            }
+
+            taken = last;
+            room.release((int) (last - first + 1)); // Their slots can be used again
+
+            if (!batch.isEmpty()) {
+                try {
+                    batchWriter.write(batch);
+                } catch (InventoryException | RuntimeException e) {
+                    System.err.println("Error recording " + batch.size() + " transactions: " + e.getMessage());
+                    failed.addAndGet(batch.size());
+                }
+                batch.clear();
+            }
+            // Once a transaction is lost, the ones after it being written
+            // doesn't make everything up to them durable
+            if (failed.get() == 0) {
+                durable = last;
+            }
+
+            synchronized (progress) {
+                handled = last;
+                progress.notifyAll();
+            }
+            return true;
+        }
+    }
+}
\ No newline at end of file
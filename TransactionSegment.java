@@ -0,0 +1,689 @@
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// This class is one piece (a segment) of the transaction history
+// New transactions go into the newest segment. Once it's big enough it is
+// sealed and never changes again, and we write a small index file next to it
+// saying how many transactions it holds and what time span they cover. That
+// lets us step over a whole segment without reading it.
+// Next to the index there's a postings file that lists, for every product,
+// which transactions in the segment are for it, so one product's history can
+// be read without going through everyone else's. It also holds the time span
+// of every chunk of CHUNK_SIZE transactions, so a time range query only reads
+// the chunks that overlap the range.
+// A sealed segment can later be archived: rewritten as a compressed
+// TransactionArchive that reads the same. Or it can be compacted: its single
+// transactions are replaced by one TransactionSummary per product.
+public class TransactionSegment implements Closeable {
+    // Segment files are called transactions.seg.1, transactions.seg.2, ...
+    public static final String SEGMENT_PREFIX = "transactions.seg.";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String SUMMARY_SUFFIX = ".sum";
+    private static final String POSTINGS_SUFFIX = ".pst";
+    private static final String ARCHIVE_SUFFIX = ".arc";
+
+    private static final int INDEX_MAGIC = 0x54584958; // "TXIX"
+    private static final int SUMMARY_MAGIC = 0x5458534D; // "TXSM"
+    // Postings files from before chunk time spans had "TXPS" here; they fail the
+    // check and are worked out again
+    private static final int POSTINGS_MAGIC = 0x54585032; // "TXP2"
+    // We remember where every CHUNK_SIZE-th record starts in the segment file,
+    // so reading one transaction never means stepping over more than this many
+    private static final int CHUNK_SIZE = 64;
+
+    private final long number;
+    // Opened the first time we need it; null once the segment is archived or
+    // compacted
+    private TransactionJournal journal;
+    // Opened the first time we need it, if the segment is archived
+    private TransactionArchive archive;
+    private boolean sealed;
+    private boolean archived;
+    private boolean compacted;
+
+    // What the index file holds
+    private long count;
+    private LocalDateTime firstTimestamp;
+    private LocalDateTime lastTimestamp;
+    // Transactions are written in the order their places were claimed, which
+    // isn't always time order (see TransactionStore.readBetween()); these are
+    // the earliest and latest times in the segment
+    private LocalDateTime minTimestamp;
+    private LocalDateTime maxTimestamp;
+
+    // What the postings file holds: product id (as a PackedId.key()) -> the
+    // numbers (counted from 0)
+    // of its transactions in this segment, where every CHUNK_SIZE-th record
+    // starts, and the earliest and latest time in each chunk. Loaded the first
+    // time someone asks for a product's history or a time range; null until
+    // then, and once the segment is compacted.
+    private Map<Object, Postings> postings;
+    private List<Long> chunkStarts;
+    private List<LocalDateTime> chunkMinTimestamps;
+    private List<LocalDateTime> chunkMaxTimestamps;
+
+    // A growing list of transaction numbers, kept as plain ints to save memory
+    private static class Postings {
+        int[] ordinals = new int[4];
+        int size;
+
+        void add(int ordinal) {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+            }
+            ordinals[size++] = ordinal;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(ordinals, size);
+        }
+    }
+
+    private TransactionSegment(long number) {
+        this.number = number;
+    }
+
+    // Start a new, empty segment
+    public static TransactionSegment create(long number) throws IOException {
+        TransactionSegment segment = new TransactionSegment(number);
+        Files.deleteIfExists(indexPath(number));
+        Files.deleteIfExists(postingsPath(number));
+        segment.journal = new TransactionJournal(logPath(number));
+        segment.clearPostings();
+        return segment;
+    }
+
+    // Open a segment that's already on disk
+    // Only the newest segment is still being written to; every older one is
+    // sealed, and gets its index rebuilt if we crashed before writing it
+    public static TransactionSegment open(long number, boolean newest) throws IOException {
+        TransactionSegment segment = new TransactionSegment(number);
+        if (Files.exists(summaryPath(number))) {
+            // A crash during compaction can leave the old transactions behind
+            Files.deleteIfExists(logPath(number));
+            Files.deleteIfExists(archivePath(number));
+            Files.deleteIfExists(postingsPath(number));
+            segment.readIndex();
+            segment.sealed = true;
+            segment.compacted = true;
+        } else if (Files.exists(archivePath(number))) {
+            // Same for a crash while archiving
+            Files.deleteIfExists(logPath(number));
+            Files.deleteIfExists(archiveTempPath(number));
+            segment.sealed = true;
+            segment.archived = true;
+            if (Files.exists(indexPath(number))) {
+                segment.readIndex();
+            } else {
+                segment.rebuildIndex();
+                segment.writeIndex();
+                segment.writePostings();
+            }
+        } else if (newest) {
+            segment.rebuildIndex();
+        } else if (Files.exists(indexPath(number))) {
+            segment.readIndex();
+            segment.sealed = true;
+        } else {
+            segment.rebuildIndex();
+            segment.seal();
+        }
+        return segment;
+    }
+
+    // The segment number of a file that belongs to a segment, or -1 if it
+    // doesn't belong to one
+    public static long segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(SEGMENT_PREFIX)) {
+            return -1;
+        }
+        String rest = name.substring(SEGMENT_PREFIX.length());
+        int dot = rest.indexOf('.');
+        if (dot >= 0) {
+            rest = rest.substring(0, dot);
+        }
+        try {
+            return Long.parseLong(rest);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static Path logPath(long number) {
+        return Paths.get(SEGMENT_PREFIX + number);
+    }
+
+    private static Path indexPath(long number) {
+        return Paths.get(SEGMENT_PREFIX + number + INDEX_SUFFIX);
+    }
+
+    private static Path postingsPath(long number) {
+        return Paths.get(SEGMENT_PREFIX + number + POSTINGS_SUFFIX);
+    }
+
+    private static Path summaryPath(long number) {
+        return Paths.get(SEGMENT_PREFIX + number + SUMMARY_SUFFIX);
+    }
+
+    private static Path archivePath(long number) {
+        return Paths.get(SEGMENT_PREFIX + number + ARCHIVE_SUFFIX);
+    }
+
+    private static Path archiveTempPath(long number) {
+        return Paths.get(SEGMENT_PREFIX + number + ARCHIVE_SUFFIX + ".tmp");
+    }
+
+    public long getNumber() {
+        return number;
+    }
+
+    public synchronized boolean isSealed() {
+        return sealed;
+    }
+
+    public synchronized boolean isArchived() {
+        return archived;
+    }
+
+    public synchronized boolean isCompacted() {
+        return compacted;
+    }
+
+    // How many transactions the segment holds (or held, before compaction)
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized LocalDateTime getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    public synchronized LocalDateTime getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public synchronized LocalDateTime getMinTimestamp() {
+        return minTimestamp;
+    }
+
+    public synchronized LocalDateTime getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    // Add a transaction to the end of the segment (only the newest one)
+    public synchronized void append(Transaction transaction) throws IOException {
+        if (sealed) {
+            throw new IOException("Transaction segment " + number + " is sealed");
+        }
+        long position = journal.append(transaction);
+        include(transaction, position);
+    }
+
+    // Add several transactions to the end of the segment with a single write
+    public synchronized void appendAll(List<Transaction> transactions) throws IOException {
+        if (sealed) {
+            throw new IOException("Transaction segment " + number + " is sealed");
+        }
+        long[] positions = journal.appendAll(transactions);
+        for (int i = 0; i < positions.length; i++) {
+            include(transactions.get(i), positions[i]);
+        }
+    }
+
+    // How many bytes of transactions the segment holds
+    public synchronized long dataSize() throws IOException {
+        return archived || compacted ? 0 : journal().dataSize();
+    }
+
+    // Stop writing to this segment and save its index and postings
+    public synchronized void seal() throws IOException {
+        journal().force();
+        writeIndex();
+        writePostings();
+        sealed = true;
+    }
+
+    // Read up to limit transactions after skipping the first ones
+    public List<Transaction> read(long skip, int limit) throws IOException {
+        if (isCompacted()) {
+            return new ArrayList<>();
+        } else if (isArchived()) {
+            return archive().read(skip, limit);
+        }
+        return journal().read(skip, limit);
+    }
+
+    // Go through the transactions one at a time
+    // Returns false if the visitor stopped the scan early
+    public boolean scan(TransactionJournal.TransactionVisitor visitor) throws IOException {
+        if (isCompacted()) {
+            return true;
+        } else if (isArchived()) {
+            return archive().scan(visitor);
+        }
+        return journal().scan(visitor);
+    }
+
+    // Read every transaction for one product, oldest first
+    // The postings say which transactions those are, so only they are read
+    public List<Transaction> readForProduct(String productId) throws IOException {
+        int[] ordinals;
+        List<Long> starts;
+        boolean fromArchive;
+        synchronized (this) {
+            if (compacted) {
+                return new ArrayList<>();
+            }
+            loadPostings();
+            Postings found = postings.get(PackedId.key(productId));
+            if (found == null) {
+                return new ArrayList<>();
+            }
+            ordinals = found.toArray();
+            starts = new ArrayList<>(chunkStarts);
+            fromArchive = archived;
+        }
+        return fromArchive ? archive().read(ordinals) : journal().read(ordinals, starts, CHUNK_SIZE);
+    }
+
+    // Read the transactions from one time (included) up to another (not
+    // included), in the order they were written. If productId isn't null, only
+    // that product's.
+    // Only the chunks whose time span overlaps the range are read, so a short
+    // range costs about as much as the transactions in it
+    public List<Transaction> readBetween(LocalDateTime from, LocalDateTime to, String productId)
+            throws IOException {
+        List<Transaction> transactions = new ArrayList<>();
+        int[] ordinals;
+        List<Long> starts;
+        boolean fromArchive;
+        synchronized (this) {
+            if (compacted || count == 0 || maxTimestamp.isBefore(from) || !minTimestamp.isBefore(to)) {
+                return transactions;
+            }
+            loadPostings();
+
+            // The transactions in the chunks that overlap, or just the product's
+            Postings wanted = new Postings();
+            if (productId != null) {
+                Postings found = postings.get(PackedId.key(productId));
+                for (int i = 0; found != null && i < found.size; i++) {
+                    if (overlaps(found.ordinals[i] / CHUNK_SIZE, from, to)) {
+                        wanted.add(found.ordinals[i]);
+                    }
+                }
+            } else {
+                for (int chunk = 0; chunk < chunkStarts.size(); chunk++) {
+                    if (overlaps(chunk, from, to)) {
+                        long end = Math.min(count, (long) (chunk + 1) * CHUNK_SIZE);
+                        for (int ordinal = chunk * CHUNK_SIZE; ordinal < end; ordinal++) {
+                            wanted.add(ordinal);
+                        }
+                    }
+                }
+            }
+            ordinals = wanted.toArray();
+            starts = new ArrayList<>(chunkStarts);
+            fromArchive = archived;
+        }
+
+        List<Transaction> read = fromArchive ? archive().read(ordinals)
+                : journal().read(ordinals, starts, CHUNK_SIZE);
+        for (Transaction transaction : read) {
+            LocalDateTime timestamp = transaction.getTimestamp();
+            if (!timestamp.isBefore(from) && timestamp.isBefore(to)) {
+                transactions.add(transaction);
+            }
+        }
+        return transactions;
+    }
+
+    // First half of archiving: write the compressed copy under a temporary name
+    // This only reads the segment, so it can run while others read it too.
+    // Returns false if the segment can't be archived.
+    public boolean prepareArchive() throws IOException {
+        if (!isSealed() || isArchived() || isCompacted()) {
+            return false;
+        }
+        TransactionArchive.write(archiveTempPath(number), journal());
+        return true;
+    }
+
+    // Second half of archiving: swap the compressed copy in for the segment
+    // Nobody may be reading the segment while this runs
+    public synchronized void finishArchive() throws IOException {
+        if (archived || compacted) {
+            Files.deleteIfExists(archiveTempPath(number));
+            return;
+        }
+        Files.move(archiveTempPath(number), archivePath(number), StandardCopyOption.ATOMIC_MOVE);
+        RecordLog.syncDirectory(archivePath(number));
+        archived = true;
+
+        close();
+        Files.delete(logPath(number));
+        RecordLog.syncDirectory(logPath(number));
+    }
+
+    // Replace the transactions with one summary per product
+    // The summaries are safely on disk before the transactions are deleted, so a
+    // crash in between loses nothing
+    public synchronized void compact() throws IOException {
+        if (!sealed || compacted) {
+            return;
+        }
+
+        Map<Object, TransactionSummary> summaries = new LinkedHashMap<>();
+        scan(new TransactionJournal.TransactionVisitor() {
+            public boolean visit(Transaction t) {
+                Object key = t.getProductKey();
+                TransactionSummary found = summaries.get(key);
+                // Only turn the id into text once per product
+                String productId = found != null ? found.getProductId() : t.getProductId();
+                TransactionSummary summary = new TransactionSummary(productId, 1, t.getQuantity(),
+                        t.getTimestamp(), t.getTimestamp());
+                summaries.put(key, found != null ? found.plus(summary) : summary);
+                return true;
+            }
+        });
+
+        BinaryCodec.Writer out = new BinaryCodec.Writer();
+        out.writeUnsignedLong(summaries.size());
+        for (TransactionSummary summary : summaries.values()) {
+            out.writeId(summary.getProductId());
+            out.writeLong(summary.getTransactionCount());
+            out.writeLong(summary.getNetQuantityChange());
+            out.writeTimestamp(summary.getFirstTimestamp());
+            out.writeTimestamp(summary.getLastTimestamp());
+        }
+        writeFile(summaryPath(number), SUMMARY_MAGIC, out);
+        compacted = true;
+        postings = null;
+        chunkStarts = null;
+        chunkMinTimestamps = null;
+        chunkMaxTimestamps = null;
+
+        close();
+        Files.deleteIfExists(logPath(number));
+        Files.deleteIfExists(archivePath(number));
+        Files.deleteIfExists(postingsPath(number));
+        RecordLog.syncDirectory(logPath(number));
+    }
+
+    // The per-product summaries of a compacted segment
+    public List<TransactionSummary> readSummaries() throws IOException {
+        List<TransactionSummary> summaries = new ArrayList<>();
+        if (!isCompacted()) {
+            return summaries;
+        }
+        BinaryCodec.Reader in = readFile(summaryPath(number), SUMMARY_MAGIC);
+        long size = in.readUnsignedLong();
+        for (long i = 0; i < size; i++) {
+            summaries.add(new TransactionSummary(in.readId(), in.readLong(), in.readLong(),
+                    in.readTimestamp(), in.readTimestamp()));
+        }
+        return summaries;
+    }
+
+    // Push everything we've written out to the disk
+    public synchronized void force() throws IOException {
+        if (journal != null) {
+            journal.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        if (archive != null) {
+            archive.close();
+            archive = null;
+        }
+    }
+
+    // Close the segment and delete its files
+    public synchronized void delete() throws IOException {
+        close();
+        Files.deleteIfExists(logPath(number));
+        Files.deleteIfExists(indexPath(number));
+        Files.deleteIfExists(summaryPath(number));
+        Files.deleteIfExists(archivePath(number));
+        Files.deleteIfExists(archiveTempPath(number));
+        Files.deleteIfExists(postingsPath(number));
+    }
+
+    private synchronized TransactionJournal journal() throws IOException {
+        if (journal == null) {
+            if (archived || compacted) {
+                throw new IOException("Transaction segment " + number + " has been archived or compacted");
+            }
+            journal = new TransactionJournal(logPath(number));
+        }
+        return journal;
+    }
+
+    private synchronized TransactionArchive archive() throws IOException {
+        if (archive == null) {
+            archive = new TransactionArchive(archivePath(number));
+        }
+        return archive;
+    }
+
+    // Keep the index and postings up to date with a new transaction
+    // position is where its record starts, or -1 if we don't know (archives are
+    // read by transaction number, so they don't need it)
+    private void include(Transaction transaction, long position) {
+        if (count % CHUNK_SIZE == 0) {
+            chunkStarts.add(position);
+        }
+        postings.computeIfAbsent(transaction.getProductKey(), id -> new Postings()).add((int) count);
+
+        LocalDateTime timestamp = transaction.getTimestamp();
+        int chunk = (int) (count / CHUNK_SIZE);
+        if (count % CHUNK_SIZE == 0) {
+            chunkMinTimestamps.add(timestamp);
+            chunkMaxTimestamps.add(timestamp);
+        } else if (timestamp.isBefore(chunkMinTimestamps.get(chunk))) {
+            chunkMinTimestamps.set(chunk, timestamp);
+        } else if (timestamp.isAfter(chunkMaxTimestamps.get(chunk))) {
+            chunkMaxTimestamps.set(chunk, timestamp);
+        }
+        if (count == 0) {
+            firstTimestamp = timestamp;
+            minTimestamp = timestamp;
+            maxTimestamp = timestamp;
+        }
+        if (timestamp.isBefore(minTimestamp)) {
+            minTimestamp = timestamp;
+        }
+        if (timestamp.isAfter(maxTimestamp)) {
+            maxTimestamp = timestamp;
+        }
+        lastTimestamp = timestamp;
+        count++;
+    }
+
+    // Work the index and postings out by reading every transaction in the
+    // segment
+    private synchronized void rebuildIndex() throws IOException {
+        count = 0;
+        clearPostings();
+        if (archived) {
+            archive().scan(new TransactionJournal.TransactionVisitor() {
+                public boolean visit(Transaction transaction) {
+                    include(transaction, -1);
+                    return true;
+                }
+            });
+        } else {
+            journal().scan(0, new TransactionJournal.PositionedTransactionVisitor() {
+                public boolean visit(long position, Transaction transaction) {
+                    include(transaction, position);
+                    return true;
+                }
+            });
+        }
+    }
+
+    private void clearPostings() {
+        postings = new HashMap<>();
+        chunkStarts = new ArrayList<>();
+        chunkMinTimestamps = new ArrayList<>();
+        chunkMaxTimestamps = new ArrayList<>();
+    }
+
+    // True if some transaction in the chunk may fall in the time range
+    private boolean overlaps(int chunk, LocalDateTime from, LocalDateTime to) {
+        return !chunkMaxTimestamps.get(chunk).isBefore(from) && chunkMinTimestamps.get(chunk).isBefore(to);
+    }
+
+    // Load the postings of a sealed segment, or work them out again if the
+    // file is missing (we crashed before writing it) or can't be read
+    private void loadPostings() throws IOException {
+        if (postings != null) {
+            return;
+        }
+        try {
+            readPostings();
+        } catch (IOException e) {
+            rebuildIndex();
+            writePostings();
+        }
+    }
+
+    private void readPostings() throws IOException {
+        BinaryCodec.Reader in = readFile(postingsPath(number), POSTINGS_MAGIC);
+        List<Long> starts = new ArrayList<>();
+        List<LocalDateTime> minTimestamps = new ArrayList<>();
+        List<LocalDateTime> maxTimestamps = new ArrayList<>();
+        long chunks = in.readUnsignedLong();
+        long position = 0;
+        for (long i = 0; i < chunks; i++) {
+            position += in.readLong();
+            starts.add(position);
+            minTimestamps.add(in.readTimestamp());
+            maxTimestamps.add(in.readTimestamp());
+        }
+        Map<Object, Postings> loaded = new HashMap<>();
+        long products = in.readUnsignedLong();
+        for (long i = 0; i < products; i++) {
+            Postings found = new Postings();
+            loaded.put(in.readIdKey(), found);
+            long size = in.readUnsignedLong();
+            int ordinal = 0;
+            for (long j = 0; j < size; j++) {
+                ordinal += (int) in.readUnsignedLong();
+                found.add(ordinal);
+            }
+        }
+        chunkStarts = starts;
+        chunkMinTimestamps = minTimestamps;
+        chunkMaxTimestamps = maxTimestamps;
+        postings = loaded;
+    }
+
+    // Positions and transaction numbers are written as the difference from the
+    // one before, which keeps them small
+    private void writePostings() throws IOException {
+        BinaryCodec.Writer out = new BinaryCodec.Writer();
+        out.writeUnsignedLong(chunkStarts.size());
+        long previousStart = 0;
+        for (int i = 0; i < chunkStarts.size(); i++) {
+            long start = chunkStarts.get(i);
+            out.writeLong(start - previousStart); // -1 in archives, so it may go down
+            out.writeTimestamp(chunkMinTimestamps.get(i));
+            out.writeTimestamp(chunkMaxTimestamps.get(i));
+            previousStart = start;
+        }
+        out.writeUnsignedLong(postings.size());
+        for (Map.Entry<Object, Postings> entry : postings.entrySet()) {
+            Postings found = entry.getValue();
+            out.writeId(entry.getKey());
+            out.writeUnsignedLong(found.size);
+            int previous = 0;
+            for (int i = 0; i < found.size; i++) {
+                out.writeUnsignedLong(found.ordinals[i] - previous);
+                previous = found.ordinals[i];
+            }
+        }
+        writeFile(postingsPath(number), POSTINGS_MAGIC, out);
+    }
+
+    private void writeIndex() throws IOException {
+        BinaryCodec.Writer out = new BinaryCodec.Writer();
+        out.writeUnsignedLong(count);
+        if (count > 0) {
+            out.writeTimestamp(firstTimestamp);
+            out.writeTimestamp(lastTimestamp);
+            out.writeTimestamp(minTimestamp);
+            out.writeTimestamp(maxTimestamp);
+        }
+        writeFile(indexPath(number), INDEX_MAGIC, out);
+    }
+
+    private void readIndex() throws IOException {
+        BinaryCodec.Reader in = readFile(indexPath(number), INDEX_MAGIC);
+        count = in.readUnsignedLong();
+        if (count > 0) {
+            firstTimestamp = in.readTimestamp();
+            lastTimestamp = in.readTimestamp();
+            minTimestamp = in.readTimestamp();
+            maxTimestamp = in.readTimestamp();
+        }
+    }
+
+    // Write a small file as [magic][version][data][checksum] in one go
+    // It's written under a temporary name and renamed, so it's never half there
+    private static void writeFile(Path path, int magic, BinaryCodec.Writer data) throws IOException {
+        byte[] body = data.toByteArray();
+        ByteBuffer file = ByteBuffer.allocate(4 + 1 + body.length + 4);
+        file.putInt(magic).put(BinaryCodec.VERSION).put(body);
+        CRC32 crc = new CRC32();
+        crc.update(file.array(), 0, file.position());
+        file.putInt((int) crc.getValue());
+
+        Path temp = Paths.get(path + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+            out.write(file.array());
+            out.getFD().sync();
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        RecordLog.syncDirectory(path);
+    }
+
+    private static BinaryCodec.Reader readFile(Path path, int magic) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        if (bytes.length < 4 + 1 + 4) {
+            throw new IOException(path + " is too short");
+        }
+        ByteBuffer file = ByteBuffer.wrap(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if (file.getInt() != magic || file.getInt(bytes.length - 4) != (int) crc.getValue()) {
+            throw new IOException(path + " is damaged or not the kind of file we expected");
+        }
+        int version = file.get();
+        if (version != BinaryCodec.VERSION) {
+            throw new IOException("Unsupported file version " + version + " in " + path);
+        }
+        return new BinaryCodec.Reader(bytes, 5, bytes.length - 9);
+    }
+}
\ No newline at end of file
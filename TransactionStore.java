@@ -0,0 +1,248 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+// This class keeps the transaction history on disk as a row of segments
+// Transactions are added to the newest segment. When it gets bigger than
+// maxSegmentBytes it's sealed and a new one is started, so no single file keeps
+// growing forever, and old history can be compacted or deleted a whole segment
+// at a time. See TransactionSegment.
+public class TransactionStore implements Closeable {
+    // How big a segment gets before we start a new one
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    private final long maxSegmentBytes;
+    // Oldest first; the last one is the one we're writing to
+    private final List<TransactionSegment> segments = new ArrayList<>();
+
+    // Open the segments that are already on disk, or start the first one
+    public TransactionStore(long maxSegmentBytes) throws IOException {
+        this.maxSegmentBytes = maxSegmentBytes;
+        TreeSet<Long> numbers = segmentNumbers();
+        try {
+            for (long number : numbers) {
+                segments.add(TransactionSegment.open(number, number == numbers.last()));
+            }
+            if (segments.isEmpty()) {
+                segments.add(TransactionSegment.create(1));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // True if there's transaction history in segment files
+    public static boolean exists() throws IOException {
+        return !segmentNumbers().isEmpty();
+    }
+
+    // Where the first segment goes, for converting older transaction files
+    public static Path firstSegmentPath() {
+        return TransactionSegment.logPath(1);
+    }
+
+    // Add a transaction at the end, starting a new segment first if the
+    // current one is full
+    public synchronized void append(Transaction transaction) throws IOException {
+        currentSegment().append(transaction);
+    }
+
+    // Add several transactions at the end with a single write
+    // They all go into the same segment, so it can end up a batch bigger than
+    // maxSegmentBytes
+    public synchronized void appendAll(List<Transaction> transactions) throws IOException {
+        currentSegment().appendAll(transactions);
+    }
+
+    // The segment to write to, after starting a new one if the current one is
+    // full
+    private TransactionSegment currentSegment() throws IOException {
+        TransactionSegment current = segments.get(segments.size() - 1);
+        if (current.getCount() > 0 && current.dataSize() >= maxSegmentBytes) {
+            current.seal();
+            current = TransactionSegment.create(current.getNumber() + 1);
+            segments.add(current);
+        }
+        return current;
+    }
+
+    // Read every transaction, oldest first
+    public List<Transaction> readAll() throws IOException {
+        return read(0, Integer.MAX_VALUE);
+    }
+
+    // Read one page of transactions, oldest first: skip the first ones, then
+    // read up to limit
+    // Segments are stepped over using their index, so only the segments the
+    // page falls in are read
+    public List<Transaction> read(long skip, int limit) throws IOException {
+        List<Transaction> transactions = new ArrayList<>();
+        for (TransactionSegment segment : segments()) {
+            if (transactions.size() >= limit) {
+                break;
+            }
+            if (segment.isCompacted()) {
+                continue;
+            }
+            long count = segment.getCount();
+            if (skip >= count) {
+                skip -= count;
+                continue;
+            }
+            transactions.addAll(segment.read(skip, limit - transactions.size()));
+            skip = 0;
+        }
+        return transactions;
+    }
+
+    // Go through the transactions one at a time, oldest first
+    public void scan(TransactionJournal.TransactionVisitor visitor) throws IOException {
+        for (TransactionSegment segment : segments()) {
+            if (!segment.scan(visitor)) {
+                return;
+            }
+        }
+    }
+
+    // Read every transaction for one product, oldest first
+    // Each segment's postings say which of its transactions are for the
+    // product, so the others aren't read
+    public List<Transaction> readForProduct(String productId) throws IOException {
+        List<Transaction> transactions = new ArrayList<>();
+        for (TransactionSegment segment : segments()) {
+            transactions.addAll(segment.readForProduct(productId));
+        }
+        return transactions;
+    }
+
+    // Read the transactions from one time (included) up to another (not
+    // included), oldest first. If productId isn't null, only that product's.
+    // Segments whose time span doesn't overlap the range aren't read at all.
+    public List<Transaction> readBetween(LocalDateTime from, LocalDateTime to, String productId)
+            throws IOException {
+        List<Transaction> transactions = new ArrayList<>();
+        for (TransactionSegment segment : segments()) {
+            transactions.addAll(segment.readBetween(from, to, productId));
+        }
+        // A single writer writes the transactions in the order their places
+        // were claimed (see TransactionPipeline), but each one only gets its
+        // timestamp when it's handed in, after the change is saved. So the order
+        // on disk isn't always time order.
+        transactions.sort(Comparator.comparing(Transaction::getTimestamp));
+        return transactions;
+    }
+
+    // The summaries of compacted history, one per product
+    public List<TransactionSummary> readSummaries() throws IOException {
+        Map<String, TransactionSummary> summaries = new LinkedHashMap<>();
+        for (TransactionSegment segment : segments()) {
+            for (TransactionSummary summary : segment.readSummaries()) {
+                summaries.merge(summary.getProductId(), summary, TransactionSummary::plus);
+            }
+        }
+        return new ArrayList<>(summaries.values());
+    }
+
+    // Compact every sealed segment whose transactions all happened before the
+    // given time. Returns how many segments were compacted.
+    public synchronized int compact(LocalDateTime before) throws IOException {
+        int compacted = 0;
+        for (TransactionSegment segment : segments) {
+            if (segment.isSealed() && !segment.isCompacted() && segment.getCount() > 0
+                    && segment.getMaxTimestamp().isBefore(before)) {
+                segment.compact();
+                compacted++;
+            }
+        }
+        return compacted;
+    }
+
+    // First half of archiving: write compressed copies of the sealed segments
+    // whose transactions all happened before the given time
+    // This only reads the segments, so transactions can still be read and added
+    // meanwhile. Returns the segments to pass to finishArchive().
+    public List<TransactionSegment> prepareArchive(LocalDateTime before) throws IOException {
+        List<TransactionSegment> prepared = new ArrayList<>();
+        for (TransactionSegment segment : segments()) {
+            if (segment.isSealed() && segment.getCount() > 0 && segment.getMaxTimestamp().isBefore(before)
+                    && segment.prepareArchive()) {
+                prepared.add(segment);
+            }
+        }
+        return prepared;
+    }
+
+    // Second half of archiving: switch the segments over to their compressed
+    // copies. Nobody may be reading them while this runs.
+    public void finishArchive(List<TransactionSegment> prepared) throws IOException {
+        for (TransactionSegment segment : prepared) {
+            segment.finishArchive();
+        }
+    }
+
+    // Throw away all the history and write these transactions instead
+    public synchronized void rewrite(List<Transaction> transactions) throws IOException {
+        for (TransactionSegment segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+        segments.add(TransactionSegment.create(1));
+        for (Transaction transaction : transactions) {
+            append(transaction);
+        }
+    }
+
+    // Push everything we've written out to the disk
+    // Sealed segments were synced when they were sealed
+    public void force() throws IOException {
+        TransactionSegment current;
+        synchronized (this) {
+            current = segments.get(segments.size() - 1);
+        }
+        current.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (TransactionSegment segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // A copy of the segment list, so we can read without holding up appends
+    private synchronized List<TransactionSegment> segments() {
+        return new ArrayList<>(segments);
+    }
+
+    private static TreeSet<Long> segmentNumbers() throws IOException {
+        TreeSet<Long> numbers = new TreeSet<>();
+        try (Stream<Path> files = Files.list(Paths.get("."))) {
+            files.forEach(file -> {
+                long number = TransactionSegment.segmentNumber(file);
+                if (number > 0) {
+                    numbers.add(number);
+                }
+            });
+        }
+        return numbers;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,61 @@
+import java.time.LocalDateTime;
+
+// This class sums up all the transactions for one product in a stretch of
+// history that has been compacted
+// Compacting old transaction history throws away the single transactions and
+// keeps only one of these per product, which is all most reports need
+public class TransactionSummary {
+    private final String productId;
+    private final long transactionCount;
+    private final long netQuantityChange;
+    private final LocalDateTime firstTimestamp;
+    private final LocalDateTime lastTimestamp;
+
+    public TransactionSummary(String productId, long transactionCount, long netQuantityChange,
+            LocalDateTime firstTimestamp, LocalDateTime lastTimestamp) {
+        this.productId = productId;
+        this.transactionCount = transactionCount;
+        this.netQuantityChange = netQuantityChange;
+        this.firstTimestamp = firstTimestamp;
+        this.lastTimestamp = lastTimestamp;
+    }
+
+    // Getters - get the values
+    public String getProductId() {
+        return productId;
+    }
+
+    // How many transactions this sums up
+    public long getTransactionCount() {
+        return transactionCount;
+    }
+
+    // All the quantity changes added together (sales count as negative)
+    public long getNetQuantityChange() {
+        return netQuantityChange;
+    }
+
+    public LocalDateTime getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    public LocalDateTime getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    // Add another summary for the same product to this one
+    public TransactionSummary plus(TransactionSummary other) {
+        return new TransactionSummary(productId,
+                transactionCount + other.transactionCount,
+                netQuantityChange + other.netQuantityChange,
+                firstTimestamp.isBefore(other.firstTimestamp) ? firstTimestamp : other.firstTimestamp,
+                lastTimestamp.isAfter(other.lastTimestamp) ? lastTimestamp : other.lastTimestamp);
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionSummary{productId='" + productId + "', transactions=" + transactionCount
+                + ", netQuantityChange=" + netQuantityChange + ", from=" + firstTimestamp
+                + ", to=" + lastTimestamp + "}";
+    }
+}
\ No newline at end of file
@@ -0,0 +1,73 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// This program compares running a batch of stock updates on a normal thread
+// pool and on virtual threads (see TaskExecutors).
+// It uses GROUP durability, so every line waits for its transaction to be
+// synced; that waiting is where virtual threads should help. Both runs use
+// the same limit on how many lines are processed at once.
+// Virtual threads need Java 21; on older Java both runs use a thread pool.
+//
+// Run it in an empty directory, since it writes its own data files there:
+//   java VirtualThreadBenchmark [limit] [lines]
+public class VirtualThreadBenchmark {
+    private static final int PRODUCT_COUNT = 200;
+    private static final String BATCH_FILE = "benchmark_stock_updates.csv";
+
+    public static void main(String[] args) throws Exception {
+        int limit = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int lineCount = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        if (LogProductStore.exists() || MappedProductStore.exists() || TransactionStore.exists()) {
+            System.err.println("There are inventory data files here already; run this in an empty directory");
+            return;
+        }
+        if (!TaskExecutors.virtualThreadsAvailable()) {
+            System.out.println("This Java has no virtual threads, so both runs use a thread pool");
+        }
+
+        InventoryManager inventoryManager = new InventoryManager(new InventoryFileManager(
+                InventoryFileManager.ProductStorage.LOG, InventoryFileManager.DurabilityMode.GROUP));
+        try {
+            run(inventoryManager, false, limit, lineCount);
+            run(inventoryManager, true, limit, lineCount);
+        } finally {
+            inventoryManager.shutdown();
+            new File(BATCH_FILE).delete();
+        }
+    }
+
+    // Add fresh products, then sell from them with one batch
+    private static void run(InventoryManager inventoryManager, boolean virtualThreads, int limit, int lineCount)
+            throws InventoryException, IOException {
+        String mode = virtualThreads ? "virtual" : "pool";
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < PRODUCT_COUNT; i++) {
+            products.add(inventoryManager.addProduct(mode + " product " + i, "Benchmark", 2.50, lineCount, 10));
+        }
+        try (PrintWriter writer = new PrintWriter(BATCH_FILE)) {
+            writer.println("productId,quantityChange,transactionType");
+            Random random = new Random(1);
+            for (int i = 0; i < lineCount; i++) {
+                writer.println(products.get(random.nextInt(products.size())).getId() + ",-1,SALE");
+            }
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        long start = System.nanoTime();
+        BatchProcessor.BatchResult result = new BatchProcessor(inventoryManager, limit, virtualThreads)
+                .processBatchStockUpdate(BATCH_FILE, "benchmark");
+        long time = System.nanoTime() - start;
+
+        System.out.println(mode + ", at most " + limit + " at once: " + lineCount + " lines in "
+                + time / 1_000_000 + " ms (" + result.getSuccessCount() + " succeeded, "
+                + result.getFailureCount() + " failed), peak " + threads.getPeakThreadCount()
+                + " platform threads");
+    }
+}
\ No newline at end of file